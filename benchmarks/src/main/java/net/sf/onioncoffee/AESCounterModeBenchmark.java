@@ -0,0 +1,45 @@
+package net.sf.onioncoffee;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.onioncoffee.common.AESCounterMode;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * the AES counter mode key stream xored in place over a cell payload and over
+ * a larger block of data.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class AESCounterModeBenchmark {
+    @Param({ "509", "16384" })
+    int size;
+
+    AESCounterMode aes;
+    byte[] data;
+
+    @Setup
+    public void setup() {
+        byte[] key = new byte[16];
+        new Random(1).nextBytes(key);
+        aes = new AESCounterMode(true, key);
+        data = new byte[size];
+        new Random(2).nextBytes(data);
+    }
+
+    @Benchmark
+    public byte[] processStream() {
+        aes.processStream(data, 0, data, 0, data.length);
+        return data;
+    }
+}
@@ -0,0 +1,68 @@
+package net.sf.onioncoffee;
+
+import java.util.Random;
+
+/**
+ * fixtures shared by the benchmarks
+ */
+final class Benchmarks {
+    private Benchmarks() {
+    }
+
+    /**
+     * key material for a node, always the same for the same seed
+     */
+    static byte[] keyMaterial(int seed) {
+        byte[] k = new byte[72];
+        new Random(seed).nextBytes(k);
+        return k;
+    }
+
+    /**
+     * an established circuit with the given number of hops that isn't
+     * connected to anything
+     */
+    static Circuit circuit(int hops) {
+        CircuitNode[] route = new CircuitNode[hops];
+        for (int i = 0; i < hops; ++i) {
+            route[i] = new CircuitNode(null, keyMaterial(i), 0);
+        }
+        return new Circuit(null, 1, route);
+    }
+
+    /**
+     * the same circuit, with cells taken from the given pool instead of the
+     * pool of a connection
+     */
+    static Circuit circuit(int hops, final CellPool pool) {
+        CircuitNode[] route = new CircuitNode[hops];
+        for (int i = 0; i < hops; ++i) {
+            route[i] = new CircuitNode(null, keyMaterial(i), 0);
+        }
+        return new Circuit(null, 1, route) {
+            @Override
+            CellPool getCellPool() {
+                return pool;
+            }
+        };
+    }
+
+    /**
+     * the relays' side of circuit(hops): forward and backward keys swapped,
+     * so that what a relay encrypts and digests going backward is what the
+     * client's node expects
+     */
+    static CircuitNode[] relays(int hops) {
+        CircuitNode[] retVal = new CircuitNode[hops];
+        for (int i = 0; i < hops; ++i) {
+            byte[] k = keyMaterial(i);
+            byte[] swapped = new byte[k.length];
+            System.arraycopy(k, 20, swapped, 0, 20);
+            System.arraycopy(k, 0, swapped, 20, 20);
+            System.arraycopy(k, 56, swapped, 40, 16);
+            System.arraycopy(k, 40, swapped, 56, 16);
+            retVal[i] = new CircuitNode(null, swapped, 0);
+        }
+        return retVal;
+    }
+}
@@ -0,0 +1,100 @@
+package net.sf.onioncoffee;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.onioncoffee.Cell.CellType;
+import net.sf.onioncoffee.CellRelay.RelayType;
+import net.sf.onioncoffee.common.Encoding;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * compares the encoding of a full DATA cell before cells were encoded into
+ * caller supplied buffers with encoding it into a shared outbound buffer.
+ *
+ * The old path is gone from the proxy, so legacyToByteArray() is a copy of it:
+ * the data is kept in its own array and copied into the payload, the header
+ * fields go through temporary arrays, and the sealed payload is copied once
+ * more into a fresh array for the whole cell, which is wrapped for MINA. It
+ * uses today's CircuitNode for the digest and the encryption, so only the
+ * encoding differs between the two.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CellEncodingBenchmark {
+    private static final Logger LOG = LoggerFactory.getLogger(CellEncodingBenchmark.class);
+
+    @Param({ "1", "3" })
+    int hops;
+
+    Circuit circuit;
+    CellPool pool;
+    ByteBuffer out;
+    byte[] data;
+
+    @Setup
+    public void setup() {
+        circuit = Benchmarks.circuit(hops);
+        pool = new CellPool(16, false);
+        out = ByteBuffer.allocateDirect(32 * Cell.CELL_TOTAL_SIZE);
+        data = new byte[CellRelay.RELAY_DATA_SIZE];
+        new Random(1).nextBytes(data);
+    }
+
+    @Benchmark
+    public IoBuffer legacyToByteArray() {
+        byte[] cellData = new byte[CellRelay.RELAY_DATA_SIZE];
+        System.arraycopy(data, 0, cellData, 0, data.length);
+        return IoBuffer.wrap(legacyEncode(circuit, RelayType.RELAY_DATA, 0, cellData, data.length));
+    }
+
+    @Benchmark
+    public ByteBuffer encodeTo() {
+        CellRelay cell = pool.acquireRelay(circuit, RelayType.RELAY_DATA);
+        cell.appendData(data);
+        if (out.remaining() < Cell.CELL_TOTAL_SIZE) {
+            out.clear();
+        }
+        cell.encodeTo(out);
+        cell.release();
+        return out;
+    }
+
+    /**
+     * CellRelay.toByteArray() and Cell.toByteArray() as they were
+     */
+    static byte[] legacyEncode(Circuit circuit, RelayType relayCommand, int streamId, byte[] data, int dataLength) {
+        byte[] payload = new byte[Cell.CELL_PAYLOAD_SIZE];
+        LOG.trace("toByteArray() for " + circuit.route_established + " layers");
+        payload[CellRelay.RELAY_COMMAND_POS] = relayCommand.value;
+        System.arraycopy(Encoding.intToNByteArray(streamId, CellRelay.RELAY_STREAMID_SIZE), 0, payload, CellRelay.RELAY_STREAMID_POS, CellRelay.RELAY_STREAMID_SIZE);
+        System.arraycopy(Encoding.intToNByteArray(dataLength, CellRelay.RELAY_LENGTH_SIZE), 0, payload, CellRelay.RELAY_LENGTH_POS, CellRelay.RELAY_LENGTH_SIZE);
+        System.arraycopy(data, 0, payload, CellRelay.RELAY_DATA_POS, CellRelay.RELAY_DATA_SIZE);
+        int i0 = circuit.route_established - 1;
+        byte[] digest = circuit.route[i0].calcForwardDigest(payload);
+        System.arraycopy(digest, 0, payload, CellRelay.RELAY_DIGEST_POS, CellRelay.RELAY_DIGEST_SIZE);
+        for (int i = i0; i >= 0; --i) {
+            circuit.route[i].encrypt(payload);
+        }
+
+        byte[] buff = new byte[Cell.CELL_TOTAL_SIZE];
+        LOG.trace("Cell.toByteArray()");
+        System.arraycopy(Encoding.intToNByteArray(circuit.getId(), Cell.CELL_CIRCID_SIZE), 0, buff, Cell.CELL_CIRCID_POS, Cell.CELL_CIRCID_SIZE);
+        buff[Cell.CELL_COMMAND_POS] = CellType.CELL_RELAY.value;
+        System.arraycopy(payload, 0, buff, Cell.CELL_PAYLOAD_POS, payload.length);
+        return buff;
+    }
+}
@@ -0,0 +1,108 @@
+package net.sf.onioncoffee;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.onioncoffee.CellRelay.RelayType;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.filterchain.IoFilter.NextFilter;
+import org.apache.mina.core.session.DummySession;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.codec.AbstractProtocolDecoderOutput;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * receiving DATA cells from the last hop of a circuit the way a
+ * ServerConnection does: CellDecoder cuts them out of the TLS stream into
+ * cells of the pool, then every cell gets its circuit and decrypt() removes
+ * every onion layer and checks the digest. The cells are encrypted by the
+ * relays' side of the circuit before every batch, since the key streams only
+ * move forward.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CellReadBenchmark {
+    static final int CELLS = 256;
+
+    @Param({ "1", "2", "3" })
+    int hops;
+
+    CircuitNode[] relays;
+    Map<Integer, Circuit> circuits;
+    CellDecoder decoder;
+    IoSession session;
+    AbstractProtocolDecoderOutput out;
+    ByteBuffer received;
+    byte[] data;
+
+    @Setup
+    public void setup() {
+        Circuit circuit = Benchmarks.circuit(hops);
+        circuits = new HashMap<Integer, Circuit>();
+        circuits.put(circuit.getId(), circuit);
+        relays = Benchmarks.relays(hops);
+        decoder = new CellDecoder(new CellPool(16, false));
+        session = new DummySession();
+        out = new AbstractProtocolDecoderOutput() {
+            public void flush(NextFilter nextFilter, IoSession session) {
+            }
+        };
+        received = ByteBuffer.allocate(CELLS * Cell.CELL_TOTAL_SIZE);
+        data = new byte[CellRelay.RELAY_DATA_SIZE];
+        new Random(1).nextBytes(data);
+    }
+
+    @Setup(Level.Invocation)
+    public void receive() {
+        received.clear();
+        byte[] payload = new byte[Cell.CELL_PAYLOAD_SIZE];
+        for (int i = 0; i < CELLS; ++i) {
+            Arrays.fill(payload, (byte) 0);
+            ByteBuffer relay = ByteBuffer.wrap(payload);
+            relay.put(CellRelay.RELAY_COMMAND_POS, RelayType.RELAY_DATA.value);
+            relay.putShort(CellRelay.RELAY_STREAMID_POS, (short) 1);
+            relay.putShort(CellRelay.RELAY_LENGTH_POS, (short) data.length);
+            System.arraycopy(data, 0, payload, CellRelay.RELAY_DATA_POS, data.length);
+            relay.putInt(CellRelay.RELAY_DIGEST_POS, relays[hops - 1].calcForwardDigestPrefix(payload, 0, payload.length));
+            for (int j = hops - 1; j >= 0; --j) {
+                relays[j].encrypt(relay);
+            }
+            received.putShort((short) 1);
+            received.put(Cell.CellType.CELL_RELAY.value);
+            received.put(payload);
+        }
+        received.flip();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CELLS)
+    public int read() throws IOException {
+        int retVal = 0;
+        IoBuffer in = IoBuffer.wrap(received);
+        for (int i = 0; i < CELLS; ++i) {
+            decoder.doDecode(session, in, out);
+            CellRelay cell = (CellRelay) out.getMessageQueue().poll();
+            cell.setCircuit(circuits.get(cell.circuitId));
+            cell.decrypt();
+            retVal += cell.dataLength;
+            cell.release();
+        }
+        return retVal;
+    }
+}
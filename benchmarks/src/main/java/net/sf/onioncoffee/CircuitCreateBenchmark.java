@@ -0,0 +1,99 @@
+package net.sf.onioncoffee;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.onioncoffee.common.Curve25519;
+import net.sf.onioncoffee.common.Encryption;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * the computation on both ends for creating the first hop of a circuit, which
+ * adds to the build latency on top of the round trip: CREATE with the RSA
+ * onion skin and Diffie-Hellman (our key taken precomputed from the pool),
+ * against CREATE_FAST and against the ntor handshake of CREATE2 and EXTEND2
+ * with an in-JVM responder.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CircuitCreateBenchmark {
+    SecureRandom random;
+    KeyPair onionKey;
+    DhKeyPool.DhKey dhKey;
+    byte[] identity;
+    byte[] ntorPrivateKey;
+    byte[] ntorOnionKey;
+
+    @Setup
+    public void setup() throws Exception {
+        random = new SecureRandom();
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024, random);
+        onionKey = generator.generateKeyPair();
+        dhKey = new DhKeyPool(0).generate();
+        identity = new byte[CircuitNode.HASH_LEN];
+        random.nextBytes(identity);
+        ntorPrivateKey = Curve25519.generatePrivateKey(random);
+        ntorOnionKey = Curve25519.publicKey(ntorPrivateKey);
+    }
+
+    @Benchmark
+    public CircuitNode create() throws Exception {
+        // client: onion skin
+        byte[] symmetricKey = new byte[16];
+        random.nextBytes(symmetricKey);
+        byte[] onion_raw = new byte[144];
+        System.arraycopy(symmetricKey, 0, onion_raw, 0, 16);
+        System.arraycopy(dhKey.gx, 0, onion_raw, 16, 128);
+        byte[] onion_skin = Encryption.asymmetricEncrypt(onion_raw, symmetricKey, onionKey.getPublic());
+
+        // server: decrypt, own DH key, g^xy, KDF
+        byte[] gx = Encryption.asymmetricDecrypt(onion_skin, symmetricKey, onionKey.getPrivate());
+        BigInteger y = new BigInteger(CircuitNode.DH_P.bitLength() - 1, random);
+        byte[] created = new byte[128 + CircuitNode.HASH_LEN];
+        System.arraycopy(CircuitNode.BigIntegerTo128Bytes(CircuitNode.DH_G.modPow(y, CircuitNode.DH_P)), 0, created, 0, 128);
+        BigInteger gxy = new BigInteger(1, Arrays.copyOfRange(gx, 16, 144)).modPow(y, CircuitNode.DH_P);
+        System.arraycopy(CircuitNode.deriveKeys(CircuitNode.BigIntegerTo128Bytes(gxy)), 0, created, 128, CircuitNode.HASH_LEN);
+
+        // client: g^xy, KDF
+        return new CircuitNode(null, created, dhKey.x);
+    }
+
+    @Benchmark
+    public CircuitNode createFast() throws Exception {
+        // client: X
+        byte[] x = new byte[CircuitNode.HASH_LEN];
+        random.nextBytes(x);
+
+        // server: Y, KDF
+        byte[] created = new byte[2 * CircuitNode.HASH_LEN];
+        random.nextBytes(created);
+        byte[] k0 = new byte[2 * CircuitNode.HASH_LEN];
+        System.arraycopy(x, 0, k0, 0, CircuitNode.HASH_LEN);
+        System.arraycopy(created, 0, k0, CircuitNode.HASH_LEN, CircuitNode.HASH_LEN);
+        System.arraycopy(CircuitNode.deriveKeys(k0), 0, created, CircuitNode.HASH_LEN, CircuitNode.HASH_LEN);
+
+        // client: KDF
+        return CircuitNode.createFast(null, x, created);
+    }
+
+    @Benchmark
+    public CircuitNode ntor() throws Exception {
+        NtorHandshake handshake = new NtorHandshake(identity, ntorOnionKey, random);
+        byte[] keys = new byte[NtorHandshake.KEY_MATERIAL_LENGTH];
+        byte[] reply = NtorHandshake.respond(identity, ntorPrivateKey, ntorOnionKey, handshake.getOnionSkin(), random, keys);
+        return new CircuitNode(null, handshake.finish(reply, 0), 0);
+    }
+}
@@ -0,0 +1,57 @@
+package net.sf.onioncoffee;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * one onion layer of a cell payload: encrypting, decrypting and the running
+ * forward digest, both as the digest array and as the prefix that goes into
+ * the relay header.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CircuitNodeBenchmark {
+    CircuitNode node;
+    byte[] data;
+    ByteBuffer payload;
+
+    @Setup
+    public void setup() {
+        node = new CircuitNode(null, Benchmarks.keyMaterial(0), 0);
+        data = new byte[Cell.CELL_PAYLOAD_SIZE];
+        new Random(1).nextBytes(data);
+        payload = ByteBuffer.wrap(data);
+    }
+
+    @Benchmark
+    public ByteBuffer encrypt() {
+        node.encrypt(payload);
+        return payload;
+    }
+
+    @Benchmark
+    public ByteBuffer decrypt() {
+        node.decrypt(payload);
+        return payload;
+    }
+
+    @Benchmark
+    public byte[] calcForwardDigest() {
+        return node.calcForwardDigest(data);
+    }
+
+    @Benchmark
+    public int calcForwardDigestPrefix() {
+        return node.calcForwardDigestPrefix(data, 0, data.length);
+    }
+}
@@ -0,0 +1,85 @@
+package net.sf.onioncoffee;
+
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+
+import net.sf.onioncoffee.common.CryptoContext;
+import net.sf.onioncoffee.common.Encryption;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * the steps of verifying a server descriptor, each with a JCA object from
+ * getInstance() as before, against the one cached in the CryptoContext: the
+ * digest of a descriptor sized text, the RSA public key operation of the
+ * signature check and the construction of the signing key.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CryptoContextBenchmark {
+    byte[] descriptor;
+    byte[] signature;
+    RSAPublicKey publicKey;
+    RSAPublicKeySpec keySpec;
+
+    @Setup
+    public void setup() throws Exception {
+        descriptor = new byte[2000];
+        new Random(1).nextBytes(descriptor);
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        KeyPair keys = generator.generateKeyPair();
+        publicKey = (RSAPublicKey) keys.getPublic();
+        keySpec = new RSAPublicKeySpec(publicKey.getModulus(), publicKey.getPublicExponent());
+        signature = Encryption.signData(descriptor, keys.getPrivate());
+    }
+
+    @Benchmark
+    public byte[] digestGetInstance() throws Exception {
+        return MessageDigest.getInstance("SHA-1").digest(descriptor);
+    }
+
+    @Benchmark
+    public byte[] digestCached() throws Exception {
+        return CryptoContext.get().getMessageDigest("SHA-1").digest(descriptor);
+    }
+
+    @Benchmark
+    public byte[] verifyGetInstance() throws Exception {
+        Cipher cipher = Cipher.getInstance("RSA");
+        cipher.init(Cipher.DECRYPT_MODE, publicKey);
+        return cipher.doFinal(signature);
+    }
+
+    @Benchmark
+    public byte[] verifyCached() throws Exception {
+        Cipher cipher = CryptoContext.get().getCipher("RSA");
+        cipher.init(Cipher.DECRYPT_MODE, publicKey);
+        return cipher.doFinal(signature);
+    }
+
+    @Benchmark
+    public Object keyGetInstance() throws Exception {
+        return KeyFactory.getInstance("RSA").generatePublic(keySpec);
+    }
+
+    @Benchmark
+    public Object keyCached() throws Exception {
+        return CryptoContext.get().getKeyFactory("RSA").generatePublic(keySpec);
+    }
+}
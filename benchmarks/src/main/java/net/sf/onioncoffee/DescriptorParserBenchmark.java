@@ -0,0 +1,97 @@
+package net.sf.onioncoffee;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import net.sf.onioncoffee.common.Encoding;
+import net.sf.onioncoffee.common.RegexUtil;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+/**
+ * the time to a usable directory: the bundled consensus and the descriptors
+ * of multi-server.txt, parsed and verified one after the other on the calling
+ * thread as before, against the DescriptorParser with a number of threads.
+ *
+ * The descriptors aren't part of the bundled consensus, so an entry for every
+ * one of them is added to it. Run from the root of the project or set
+ * examples to the test resources of the proxy.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DescriptorParserBenchmark {
+    private static final String ROUTER_DESRIPTOR_SPLITTER = "^(router.+?-----END SIGNATURE-----)$";
+
+    @Param("proxy/src/test/resources/examples")
+    String examples;
+
+    @Param({ "1", "2", "4" })
+    int threads;
+
+    String consensus;
+    String descriptors;
+    DescriptorParser parser;
+
+    @Setup
+    public void setup() throws IOException {
+        descriptors = Files.toString(new File(examples, "server/multi-server.txt"), Charsets.US_ASCII);
+        StringBuilder entries = new StringBuilder();
+        for (String descriptor : DescriptorParser.split(descriptors)) {
+            Matcher m = Pattern.compile("^router (\\S+) (\\S+) (\\d+) \\d+ (\\d+)", Pattern.MULTILINE).matcher(descriptor);
+            m.find();
+            String fingerprint = Encoding.toBase64(Encoding.parseHex(Server.parseDescriptorFingerprint(descriptor))).replace("=", "");
+            String published = RegexUtil.parseStringByRE(descriptor, "^published (\\S+ \\S+)", "");
+            entries.append("r ").append(m.group(1)).append(' ').append(fingerprint).append(" AAAAAAAAAAAAAAAAAAAAAAAAAAA ")
+                    .append(published).append(' ').append(m.group(2)).append(' ').append(m.group(3)).append(' ').append(m.group(4))
+                    .append("\ns Fast Running Stable Valid\nv Tor 0.2.1.16-rc\nw Bandwidth=100\np reject 1-65535\n");
+        }
+        String bundled = Files.toString(new File(examples, "consensus"), Charsets.US_ASCII);
+        int end = bundled.indexOf("directory-footer");
+        if (end < 0) {
+            end = bundled.indexOf("directory-signature");
+        }
+        consensus = bundled.substring(0, end) + entries + bundled.substring(end);
+        parser = new DescriptorParser(threads);
+    }
+
+    @TearDown
+    public void tearDown() {
+        parser.shutdown();
+    }
+
+    @Benchmark
+    public int serial() {
+        Directory directory = new Directory();
+        directory.parseConsensus(consensus);
+        Matcher m = Pattern.compile(ROUTER_DESRIPTOR_SPLITTER, RegexUtil.REGEX_MULTILINE_FLAGS).matcher(descriptors);
+        while (m.find()) {
+            String descriptor = m.group(1);
+            Server server = directory.getServers().get(Server.parseDescriptorFingerprint(descriptor));
+            directory.parseServer(server, descriptor);
+        }
+        return directory.getValidServers().size();
+    }
+
+    @Benchmark
+    public int pipeline() throws InterruptedException {
+        Directory directory = new Directory();
+        directory.parseConsensus(consensus);
+        parser.parse(directory, descriptors, null).await();
+        return directory.getValidServers().size();
+    }
+}
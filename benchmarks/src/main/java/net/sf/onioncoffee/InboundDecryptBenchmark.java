@@ -0,0 +1,73 @@
+package net.sf.onioncoffee;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * aggregate throughput of removing three onion layers and checking the digest
+ * of received cells, for many circuits on one link, depending on the number
+ * of threads of the CircuitExecutor. The score is in cells per second and
+ * should grow with the threads as long as there are cores for them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class InboundDecryptBenchmark {
+    static final int CIRCUITS = 64;
+    static final int CELLS = 1024;
+
+    @Param({ "1", "2", "4" })
+    int threads;
+
+    CircuitExecutor executor;
+    Circuit[] circuits;
+    ByteBuffer[] payloads;
+
+    @Setup
+    public void setup() {
+        executor = new CircuitExecutor(threads);
+        circuits = new Circuit[CIRCUITS];
+        payloads = new ByteBuffer[CIRCUITS];
+        for (int i = 0; i < CIRCUITS; ++i) {
+            circuits[i] = Benchmarks.circuit(3);
+            payloads[i] = ByteBuffer.allocate(Cell.CELL_PAYLOAD_SIZE);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CELLS)
+    public void decrypt() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(CELLS);
+        for (int i = 0; i < CELLS; ++i) {
+            final int c = i % CIRCUITS;
+            executor.execute(1, 0x80000000 | c, new Runnable() {
+                public void run() {
+                    ByteBuffer payload = payloads[c];
+                    for (CircuitNode node : circuits[c].route) {
+                        node.decrypt(payload);
+                        node.calcBackwardDigestPrefix(payload.array(), 0, Cell.CELL_PAYLOAD_SIZE);
+                    }
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+    }
+}
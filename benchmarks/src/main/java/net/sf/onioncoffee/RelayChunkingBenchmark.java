@@ -0,0 +1,45 @@
+package net.sf.onioncoffee;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * cutting data written to a stream into DATA cells with
+ * CellRelay.getRelayCells, for a single cell and for larger writes. The cells
+ * go back to the pool right away.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RelayChunkingBenchmark {
+    @Param({ "498", "4096", "65536" })
+    int size;
+
+    TCPStream stream;
+    byte[] data;
+
+    @Setup
+    public void setup() {
+        stream = new TCPStream(Benchmarks.circuit(3, new CellPool(256, false)));
+        data = new byte[size];
+        new Random(1).nextBytes(data);
+    }
+
+    @Benchmark
+    public int getRelayCells() {
+        CellRelay[] cells = CellRelay.getRelayCells(stream, data, 0, data.length);
+        for (CellRelay cell : cells) {
+            cell.release();
+        }
+        return cells.length;
+    }
+}
@@ -0,0 +1,48 @@
+package net.sf.onioncoffee;
+
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.onioncoffee.common.RunningSha1;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * the running digest of a relay cell: a JCA MessageDigest that is cloned to
+ * take the intermediate digest, against RunningSha1.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RelayDigestBenchmark {
+    MessageDigest messageDigest;
+    RunningSha1 runningSha1;
+    byte[] payload;
+
+    @Setup
+    public void setup() throws Exception {
+        messageDigest = MessageDigest.getInstance("SHA-1");
+        runningSha1 = new RunningSha1();
+        payload = new byte[Cell.CELL_PAYLOAD_SIZE];
+        new Random(1).nextBytes(payload);
+    }
+
+    @Benchmark
+    public byte[] messageDigestClone() throws CloneNotSupportedException {
+        messageDigest.update(payload, 0, payload.length);
+        return ((MessageDigest) messageDigest.clone()).digest();
+    }
+
+    @Benchmark
+    public int runningSha1() {
+        runningSha1.update(payload, 0, payload.length);
+        return runningSha1.getDigestPrefix();
+    }
+}
@@ -17,6 +17,7 @@
  */
 package net.sf.onioncoffee.common;
 
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.Key;
@@ -41,10 +42,14 @@ import org.slf4j.LoggerFactory;
 
 public class AESCounterMode {
     private final static String ALGORITHM = "AES";
+    private final static String TRANSFORMATION = "AES/ECB/NoPadding";
+    // key stream is generated this many blocks at a time
+    private final static int STREAM_BLOCKS = 32;
     private final Cipher cipher;
     private final int blockSize;
     private final byte[] counterBuffer;
-    private byte[] cipherStreamBuffer;
+    private final byte[] counterBlocks;
+    private final byte[] cipherStreamBuffer;
     private int cipherStreamIndex;
 
     /**
@@ -65,12 +70,13 @@ public class AESCounterMode {
         }
         try {
             // init cipher
-            cipher = Cipher.getInstance(ALGORITHM);
+            cipher = Cipher.getInstance(TRANSFORMATION);
             cipher.init(encrypt ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE, key);
             blockSize = cipher.getBlockSize();
             counterBuffer = new byte[blockSize];
-            cipherStreamBuffer = new byte[blockSize];
-            cipherStreamIndex = blockSize;
+            counterBlocks = new byte[STREAM_BLOCKS * blockSize];
+            cipherStreamBuffer = new byte[STREAM_BLOCKS * blockSize];
+            cipherStreamIndex = cipherStreamBuffer.length;
         } catch (GeneralSecurityException e) {
             throw new RuntimeException(e);
         }
@@ -81,18 +87,12 @@ public class AESCounterMode {
     }
 
     /**
-     * reads the next key of the key stream from the buffer. if the buffer is
-     * not filled, generates the next few bytes in the buffer.
-     * 
-     * @return the next byte of the key stream
+     * generates the next STREAM_BLOCKS blocks of the key stream with a single
+     * call to the cipher, which encrypts consecutive counter values
      */
-    private byte nextStreamByte() {
-        ++cipherStreamIndex;
-        // are there still unused bytes in the buffer?
-        if (cipherStreamIndex >= blockSize) {
-            // fill stream-buffer
-            cipherStreamBuffer = cipher.update(counterBuffer);
-            cipherStreamIndex = 0;
+    private void fillStreamBuffer() {
+        for (int offset = 0; offset < counterBlocks.length; offset += blockSize) {
+            System.arraycopy(counterBuffer, 0, counterBlocks, offset, blockSize);
             // increase counterBuffer
             int j = blockSize - 1;
             do {
@@ -100,7 +100,12 @@ public class AESCounterMode {
                 --j;
             } while ((counterBuffer[j + 1] == 0) && (j >= 0));
         }
-        return cipherStreamBuffer[cipherStreamIndex];
+        try {
+            cipher.update(counterBlocks, 0, counterBlocks.length, cipherStreamBuffer, 0);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+        cipherStreamIndex = 0;
     }
 
     public void processStream(byte[] src, byte [] dst) {
@@ -119,12 +124,48 @@ public class AESCounterMode {
         processStream(src, srcOffset, dst, dstOffset, Math.min(src.length - srcOffset, dst.length - dstOffset));
     }
 
+    /**
+     * xors the next length bytes of the key stream into dst. Works in place,
+     * if src and dst are the same array at the same offset.
+     */
     public void processStream(byte[] src, int srcOffset, byte [] dst, int dstOffset, int length) {
-        for (int i = 0; i < length; ++i) {
-            dst[i + dstOffset] = (byte) ((src[i + srcOffset] + 256) ^ (nextStreamByte() + 256));
+        while (length > 0) {
+            // are there still unused bytes in the buffer?
+            if (cipherStreamIndex >= cipherStreamBuffer.length) {
+                fillStreamBuffer();
+            }
+            int n = Math.min(length, cipherStreamBuffer.length - cipherStreamIndex);
+            byte[] stream = cipherStreamBuffer;
+            int k = cipherStreamIndex;
+            // a plain loop over the bytes, which the JIT unrolls and vectorizes
+            for (int i = 0; i < n; ++i) {
+                dst[dstOffset + i] = (byte) (src[srcOffset + i] ^ stream[k + i]);
+            }
+            cipherStreamIndex += n;
+            srcOffset += n;
+            dstOffset += n;
+            length -= n;
         }
     }
     
+    /**
+     * xors the key stream into the remaining bytes of the buffer, in place.
+     * Position and limit of the buffer are not changed.
+     */
+    public void processStream(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            int offset = buffer.arrayOffset() + buffer.position();
+            processStream(buffer.array(), offset, buffer.array(), offset, buffer.remaining());
+            return;
+        }
+        for (int i = buffer.position(); i < buffer.limit(); ++i) {
+            if (cipherStreamIndex >= cipherStreamBuffer.length) {
+                fillStreamBuffer();
+            }
+            buffer.put(i, (byte) (buffer.get(i) ^ cipherStreamBuffer[cipherStreamIndex++]));
+        }
+    }
+
     public byte[] processStream(byte[] src, int srcOffset) {
         byte[] out = new byte[src.length - srcOffset];
         processStream(src, srcOffset, out);
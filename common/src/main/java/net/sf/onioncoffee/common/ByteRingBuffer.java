@@ -0,0 +1,255 @@
+/**
+ * OnionCoffee - Anonymous Communication through TOR Network
+ * Copyright (C) 2005-2007 RWTH Aachen University, Informatik IV
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA
+ */
+package net.sf.onioncoffee.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * a bounded ring of bytes from one writer to one reader, without locks. The
+ * writer never blocks: offer() takes as much as fits and says how much that
+ * was. The reader polls without blocking or reads through getInputStream(),
+ * which parks the thread until there is data or the writer closed the ring.
+ *
+ * Both positions only grow, each is written by one side and read by the
+ * other. Several writer or several reader threads have to be serialized by
+ * the caller. Closing the input stream may happen on any thread, it only
+ * marks the bytes as dropped and the reader's thread skips them.
+ */
+public final class ByteRingBuffer {
+    /**
+     * told about every read, on the reader's thread, and about the bytes
+     * dropped by closing the input stream, on the closing thread
+     */
+    public interface Listener {
+        void drained(int bytes);
+    }
+
+    private final byte[] buffer;
+    private final int mask;
+    private volatile long head = 0; // next byte to read
+    private volatile long tail = 0; // next byte to write
+    private volatile boolean eof = false; // no more writes
+    private volatile boolean discard = false; // no more reads
+    private volatile Thread reader; // parked waiting for data
+    private volatile Listener listener;
+    private final Input input = new Input();
+
+    /**
+     * @param capacity
+     *            rounded up to a power of two
+     */
+    public ByteRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        buffer = new byte[size];
+        mask = size - 1;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public int capacity() {
+        return buffer.length;
+    }
+
+    /** bytes written and not read or dropped yet */
+    public int available() {
+        return discard ? 0 : (int) (tail - head);
+    }
+
+    /** bytes that can be written right now */
+    public int free() {
+        return buffer.length - available();
+    }
+
+    /**
+     * copies as many bytes as fit into the ring. After the reader closed the
+     * stream everything is taken and dropped.
+     *
+     * @return the number of bytes taken
+     */
+    public int offer(byte[] b, int off, int len) {
+        if (discard) {
+            return len;
+        }
+        long t = tail;
+        int n = Math.min(len, buffer.length - (int) (t - head));
+        int pos = (int) t & mask;
+        int first = Math.min(n, buffer.length - pos);
+        System.arraycopy(b, off, buffer, pos, first);
+        System.arraycopy(b, off + first, buffer, 0, n - first);
+        tail = t + n;
+        wakeReader();
+        return n;
+    }
+
+    /**
+     * the writer is done, the reader gets the end of the stream after the
+     * remaining bytes
+     */
+    public void close() {
+        eof = true;
+        wakeReader();
+    }
+
+    public boolean isClosed() {
+        return eof;
+    }
+
+    /**
+     * reads without blocking
+     *
+     * @return the number of bytes read, 0 if there are none yet or -1 at the
+     *         end of the stream
+     */
+    public int poll(byte[] b, int off, int len) {
+        if (discard) {
+            return skip(len);
+        }
+        // eof before tail, so the end is only reported with everything read
+        boolean done = eof;
+        long h = head;
+        int n = Math.min(len, (int) (tail - h));
+        if (n <= 0) {
+            return done && len > 0 ? -1 : 0;
+        }
+        int pos = (int) h & mask;
+        int first = Math.min(n, buffer.length - pos);
+        System.arraycopy(buffer, pos, b, off, first);
+        System.arraycopy(buffer, 0, b, off + first, n - first);
+        head = h + n;
+        Listener l = listener;
+        if (l != null) {
+            l.drained(n);
+        }
+        return n;
+    }
+
+    /**
+     * reads without blocking into the remaining space of a buffer
+     *
+     * @return the number of bytes read, 0 if there are none yet or -1 at the
+     *         end of the stream
+     */
+    public int poll(ByteBuffer dst) {
+        int len = dst.remaining();
+        if (discard) {
+            return skip(len);
+        }
+        boolean done = eof;
+        long h = head;
+        int n = Math.min(len, (int) (tail - h));
+        if (n <= 0) {
+            return done && len > 0 ? -1 : 0;
+        }
+        int pos = (int) h & mask;
+        int first = Math.min(n, buffer.length - pos);
+        dst.put(buffer, pos, first);
+        dst.put(buffer, 0, n - first);
+        head = h + n;
+        Listener l = listener;
+        if (l != null) {
+            l.drained(n);
+        }
+        return n;
+    }
+
+    /**
+     * reads at least one byte, waiting for it if necessary
+     *
+     * @return the number of bytes read or -1 at the end of the stream
+     */
+    public int read(byte[] b, int off, int len) throws InterruptedIOException {
+        int n;
+        while ((n = poll(b, off, len)) == 0 && len > 0) {
+            reader = Thread.currentThread();
+            // checked again after announcing the reader, the writer checks
+            // for the reader after publishing
+            if (tail == head && !eof && !discard) {
+                LockSupport.park(this);
+            }
+            reader = null;
+            if (Thread.interrupted()) {
+                throw new InterruptedIOException();
+            }
+        }
+        return n;
+    }
+
+    /**
+     * the reading end as a blocking stream. Closing it drops everything that
+     * is written from then on.
+     */
+    public InputStream getInputStream() {
+        return input;
+    }
+
+    /**
+     * drops what the input stream was closed on, on the reader's thread,
+     * which is the only one that moves head
+     */
+    private int skip(int len) {
+        head = tail;
+        return len > 0 ? -1 : 0;
+    }
+
+    private void wakeReader() {
+        Thread t = reader;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    private class Input extends InputStream {
+        private final byte[] single = new byte[1];
+
+        @Override
+        public int read() throws IOException {
+            return ByteRingBuffer.this.read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return ByteRingBuffer.this.read(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            return ByteRingBuffer.this.available();
+        }
+
+        /**
+         * may be called on any thread, the reader skips the dropped bytes
+         * with its next read, a blocked reader gets the end of the stream
+         */
+        @Override
+        public void close() {
+            int n = available();
+            discard = true;
+            wakeReader();
+            Listener l = listener;
+            if (l != null && n > 0) {
+                l.drained(n);
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * OnionCoffee - Anonymous Communication through TOR Network
+ * Copyright (C) 2005-2007 RWTH Aachen University, Informatik IV
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA
+ */
+package net.sf.onioncoffee.common;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+
+/**
+ * the JCA objects of one thread, created once per algorithm and reused. Every
+ * getInstance() goes through the provider lookup, which costs more than a
+ * SHA-1 of a descriptor or an RSA public key operation.
+ *
+ * The objects must only be used by the thread that got them and not be kept
+ * across calls of other code that may use the same algorithm. Ciphers and Macs
+ * have to be initialized by the caller anyway, digests are handed out reset.
+ */
+public final class CryptoContext {
+    private static final ThreadLocal<CryptoContext> CONTEXT = new ThreadLocal<CryptoContext>() {
+        @Override
+        protected CryptoContext initialValue() {
+            return new CryptoContext();
+        }
+    };
+
+    private final Map<String, Cipher> ciphers = new HashMap<String, Cipher>();
+    private final Map<String, MessageDigest> digests = new HashMap<String, MessageDigest>();
+    private final Map<String, KeyFactory> keyFactories = new HashMap<String, KeyFactory>();
+    private final Map<String, Mac> macs = new HashMap<String, Mac>();
+
+    private CryptoContext() {
+    }
+
+    /** the context of the current thread */
+    public static CryptoContext get() {
+        return CONTEXT.get();
+    }
+
+    public Cipher getCipher(String transformation) throws GeneralSecurityException {
+        Cipher retVal = ciphers.get(transformation);
+        if (retVal == null) {
+            retVal = Cipher.getInstance(transformation);
+            ciphers.put(transformation, retVal);
+        }
+        return retVal;
+    }
+
+    public MessageDigest getMessageDigest(String algorithm) throws GeneralSecurityException {
+        MessageDigest retVal = digests.get(algorithm);
+        if (retVal == null) {
+            retVal = MessageDigest.getInstance(algorithm);
+            digests.put(algorithm, retVal);
+        } else {
+            retVal.reset();
+        }
+        return retVal;
+    }
+
+    public KeyFactory getKeyFactory(String algorithm) throws GeneralSecurityException {
+        KeyFactory retVal = keyFactories.get(algorithm);
+        if (retVal == null) {
+            retVal = KeyFactory.getInstance(algorithm);
+            keyFactories.put(algorithm, retVal);
+        }
+        return retVal;
+    }
+
+    public Mac getMac(String algorithm) throws GeneralSecurityException {
+        Mac retVal = macs.get(algorithm);
+        if (retVal == null) {
+            retVal = Mac.getInstance(algorithm);
+            macs.put(algorithm, retVal);
+        }
+        return retVal;
+    }
+}
@@ -0,0 +1,307 @@
+/**
+ * OnionCoffee - Anonymous Communication through TOR Network
+ * Copyright (C) 2005-2007 RWTH Aachen University, Informatik IV
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA
+ */
+package net.sf.onioncoffee.common;
+
+import java.security.SecureRandom;
+
+/**
+ * X25519 Diffie-Hellman (RFC 7748) as used by the ntor handshake. The JCA
+ * only has it from Java 11 on. This is the constant time Montgomery ladder of
+ * the RFC, with field elements in ten limbs of alternately 26 and 25 bits
+ * like in the ref10 implementation, so that products fit into longs without
+ * intermediate carries.
+ */
+public final class Curve25519 {
+    public static final int KEY_LENGTH = 32;
+
+    private static final byte[] BASE_POINT = new byte[KEY_LENGTH];
+    static {
+        BASE_POINT[0] = 9;
+    }
+
+    private static final int A24 = 121665;
+    private static final int LIMBS = 10;
+
+    private Curve25519() {
+    }
+
+    /**
+     * @return a new private key, already clamped
+     */
+    public static byte[] generatePrivateKey(SecureRandom random) {
+        byte[] retVal = new byte[KEY_LENGTH];
+        random.nextBytes(retVal);
+        retVal[0] &= 248;
+        retVal[31] &= 127;
+        retVal[31] |= 64;
+        return retVal;
+    }
+
+    /**
+     * @return the public key of a private key
+     */
+    public static byte[] publicKey(byte[] privateKey) {
+        return scalarMult(privateKey, BASE_POINT);
+    }
+
+    /**
+     * @return the shared secret of our private key and their public key, all
+     *         zero if the public key is of small order
+     */
+    public static byte[] scalarMult(byte[] n, byte[] p) {
+        byte[] z = new byte[KEY_LENGTH];
+        System.arraycopy(n, 0, z, 0, KEY_LENGTH);
+        z[0] &= 248;
+        z[31] &= 127;
+        z[31] |= 64;
+
+        int[] x1 = new int[LIMBS];
+        unpack(x1, p);
+        int[] x2 = new int[LIMBS], z2 = new int[LIMBS], x3 = x1.clone(), z3 = new int[LIMBS];
+        x2[0] = 1;
+        z3[0] = 1;
+        int[] a = new int[LIMBS], aa = new int[LIMBS], b = new int[LIMBS], bb = new int[LIMBS];
+        int[] c = new int[LIMBS], d = new int[LIMBS], e = new int[LIMBS];
+
+        int swap = 0;
+        for (int i = 254; i >= 0; --i) {
+            int bit = (z[i >>> 3] >>> (i & 7)) & 1;
+            swap ^= bit;
+            swap(x2, x3, swap);
+            swap(z2, z3, swap);
+            swap = bit;
+
+            add(a, x2, z2);
+            square(aa, a);
+            sub(b, x2, z2);
+            square(bb, b);
+            sub(e, aa, bb);
+            add(c, x3, z3);
+            sub(d, x3, z3);
+            mul(d, d, a); // DA
+            mul(c, c, b); // CB
+            add(x3, d, c);
+            square(x3, x3);
+            sub(z3, d, c);
+            square(z3, z3);
+            mul(z3, z3, x1);
+            mul(x2, aa, bb);
+            mulA24(z2, e);
+            add(z2, z2, aa);
+            mul(z2, z2, e);
+        }
+        swap(x2, x3, swap);
+        swap(z2, z3, swap);
+
+        invert(z2, z2);
+        mul(x2, x2, z2);
+        byte[] retVal = new byte[KEY_LENGTH];
+        pack(retVal, x2);
+        return retVal;
+    }
+
+    /**
+     * @return true if all bytes are zero, in constant time
+     */
+    public static boolean isZero(byte[] k) {
+        int acc = 0;
+        for (byte v : k) {
+            acc |= v;
+        }
+        return acc == 0;
+    }
+
+    /** the number of bits of a limb */
+    private static int width(int i) {
+        return 26 - (i & 1);
+    }
+
+    /** swaps p and q if b is 1, in constant time */
+    private static void swap(int[] p, int[] q, int b) {
+        int c = -b;
+        for (int i = 0; i < LIMBS; ++i) {
+            int t = c & (p[i] ^ q[i]);
+            p[i] ^= t;
+            q[i] ^= t;
+        }
+    }
+
+    private static void add(int[] o, int[] a, int[] b) {
+        for (int i = 0; i < LIMBS; ++i) {
+            o[i] = a[i] + b[i];
+        }
+    }
+
+    private static void sub(int[] o, int[] a, int[] b) {
+        for (int i = 0; i < LIMBS; ++i) {
+            o[i] = a[i] - b[i];
+        }
+    }
+
+    /**
+     * o = a * b, o may be a or b. Limbs of odd index have a weight of half a
+     * bit more than their position, so products of two of them count twice,
+     * and everything beyond 2^255 wraps around times 19.
+     */
+    private static void mul(int[] o, int[] a, int[] b) {
+        long a0 = a[0], a1 = a[1], a2 = a[2], a3 = a[3], a4 = a[4], a5 = a[5], a6 = a[6], a7 = a[7], a8 = a[8], a9 = a[9];
+        long b0 = b[0], b1 = b[1], b2 = b[2], b3 = b[3], b4 = b[4], b5 = b[5], b6 = b[6], b7 = b[7], b8 = b[8], b9 = b[9];
+        long b1_19 = 19 * b1, b2_19 = 19 * b2, b3_19 = 19 * b3, b4_19 = 19 * b4, b5_19 = 19 * b5, b6_19 = 19 * b6, b7_19 = 19 * b7, b8_19 = 19 * b8, b9_19 = 19 * b9;
+        long a1_2 = 2 * a1, a3_2 = 2 * a3, a5_2 = 2 * a5, a7_2 = 2 * a7, a9_2 = 2 * a9;
+        long h0 = a0 * b0 + a1_2 * b9_19 + a2 * b8_19 + a3_2 * b7_19 + a4 * b6_19 + a5_2 * b5_19 + a6 * b4_19 + a7_2 * b3_19 + a8 * b2_19 + a9_2 * b1_19;
+        long h1 = a0 * b1 + a1 * b0 + a2 * b9_19 + a3 * b8_19 + a4 * b7_19 + a5 * b6_19 + a6 * b5_19 + a7 * b4_19 + a8 * b3_19 + a9 * b2_19;
+        long h2 = a0 * b2 + a1_2 * b1 + a2 * b0 + a3_2 * b9_19 + a4 * b8_19 + a5_2 * b7_19 + a6 * b6_19 + a7_2 * b5_19 + a8 * b4_19 + a9_2 * b3_19;
+        long h3 = a0 * b3 + a1 * b2 + a2 * b1 + a3 * b0 + a4 * b9_19 + a5 * b8_19 + a6 * b7_19 + a7 * b6_19 + a8 * b5_19 + a9 * b4_19;
+        long h4 = a0 * b4 + a1_2 * b3 + a2 * b2 + a3_2 * b1 + a4 * b0 + a5_2 * b9_19 + a6 * b8_19 + a7_2 * b7_19 + a8 * b6_19 + a9_2 * b5_19;
+        long h5 = a0 * b5 + a1 * b4 + a2 * b3 + a3 * b2 + a4 * b1 + a5 * b0 + a6 * b9_19 + a7 * b8_19 + a8 * b7_19 + a9 * b6_19;
+        long h6 = a0 * b6 + a1_2 * b5 + a2 * b4 + a3_2 * b3 + a4 * b2 + a5_2 * b1 + a6 * b0 + a7_2 * b9_19 + a8 * b8_19 + a9_2 * b7_19;
+        long h7 = a0 * b7 + a1 * b6 + a2 * b5 + a3 * b4 + a4 * b3 + a5 * b2 + a6 * b1 + a7 * b0 + a8 * b9_19 + a9 * b8_19;
+        long h8 = a0 * b8 + a1_2 * b7 + a2 * b6 + a3_2 * b5 + a4 * b4 + a5_2 * b3 + a6 * b2 + a7_2 * b1 + a8 * b0 + a9_2 * b9_19;
+        long h9 = a0 * b9 + a1 * b8 + a2 * b7 + a3 * b6 + a4 * b5 + a5 * b4 + a6 * b3 + a7 * b2 + a8 * b1 + a9 * b0;
+        carry(o, h0, h1, h2, h3, h4, h5, h6, h7, h8, h9);
+    }
+
+    /** o = a * a, with the products of different limbs taken once, doubled */
+    private static void square(int[] o, int[] a) {
+        long a0 = a[0], a1 = a[1], a2 = a[2], a3 = a[3], a4 = a[4], a5 = a[5], a6 = a[6], a7 = a[7], a8 = a[8], a9 = a[9];
+        long h0 = a0 * a0 + 76 * a1 * a9 + 38 * a2 * a8 + 76 * a3 * a7 + 38 * a4 * a6 + 38 * a5 * a5;
+        long h1 = 2 * a0 * a1 + 38 * a2 * a9 + 38 * a3 * a8 + 38 * a4 * a7 + 38 * a5 * a6;
+        long h2 = 2 * a0 * a2 + 2 * a1 * a1 + 76 * a3 * a9 + 38 * a4 * a8 + 76 * a5 * a7 + 19 * a6 * a6;
+        long h3 = 2 * a0 * a3 + 2 * a1 * a2 + 38 * a4 * a9 + 38 * a5 * a8 + 38 * a6 * a7;
+        long h4 = 2 * a0 * a4 + 4 * a1 * a3 + a2 * a2 + 76 * a5 * a9 + 38 * a6 * a8 + 38 * a7 * a7;
+        long h5 = 2 * a0 * a5 + 2 * a1 * a4 + 2 * a2 * a3 + 38 * a6 * a9 + 38 * a7 * a8;
+        long h6 = 2 * a0 * a6 + 4 * a1 * a5 + 2 * a2 * a4 + 2 * a3 * a3 + 76 * a7 * a9 + 19 * a8 * a8;
+        long h7 = 2 * a0 * a7 + 2 * a1 * a6 + 2 * a2 * a5 + 2 * a3 * a4 + 38 * a8 * a9;
+        long h8 = 2 * a0 * a8 + 4 * a1 * a7 + 2 * a2 * a6 + 4 * a3 * a5 + a4 * a4 + 38 * a9 * a9;
+        long h9 = 2 * a0 * a9 + 2 * a1 * a8 + 2 * a2 * a7 + 2 * a3 * a6 + 2 * a4 * a5;
+        carry(o, h0, h1, h2, h3, h4, h5, h6, h7, h8, h9);
+    }
+
+    /** o = a * 121665 */
+    private static void mulA24(int[] o, int[] a) {
+        carry(o, A24 * (long) a[0], A24 * (long) a[1], A24 * (long) a[2], A24 * (long) a[3], A24 * (long) a[4], A24 * (long) a[5],
+                A24 * (long) a[6], A24 * (long) a[7], A24 * (long) a[8], A24 * (long) a[9]);
+    }
+
+    /**
+     * brings the limbs back to their width (plus a little) and stores them in
+     * o. The order of the carries keeps the chains short.
+     */
+    private static void carry(int[] o, long h0, long h1, long h2, long h3, long h4, long h5, long h6, long h7, long h8, long h9) {
+        long c;
+        c = (h0 + (1L << 25)) >> 26; h1 += c; h0 -= c << 26;
+        c = (h4 + (1L << 25)) >> 26; h5 += c; h4 -= c << 26;
+        c = (h1 + (1L << 24)) >> 25; h2 += c; h1 -= c << 25;
+        c = (h5 + (1L << 24)) >> 25; h6 += c; h5 -= c << 25;
+        c = (h2 + (1L << 25)) >> 26; h3 += c; h2 -= c << 26;
+        c = (h6 + (1L << 25)) >> 26; h7 += c; h6 -= c << 26;
+        c = (h3 + (1L << 24)) >> 25; h4 += c; h3 -= c << 25;
+        c = (h7 + (1L << 24)) >> 25; h8 += c; h7 -= c << 25;
+        c = (h4 + (1L << 25)) >> 26; h5 += c; h4 -= c << 26;
+        c = (h8 + (1L << 25)) >> 26; h9 += c; h8 -= c << 26;
+        c = (h9 + (1L << 24)) >> 25; h0 += 19 * c; h9 -= c << 25;
+        c = (h0 + (1L << 25)) >> 26; h1 += c; h0 -= c << 26;
+        o[0] = (int) h0;
+        o[1] = (int) h1;
+        o[2] = (int) h2;
+        o[3] = (int) h3;
+        o[4] = (int) h4;
+        o[5] = (int) h5;
+        o[6] = (int) h6;
+        o[7] = (int) h7;
+        o[8] = (int) h8;
+        o[9] = (int) h9;
+    }
+
+    /** o = i^(p - 2) = i^(2^255 - 21) */
+    private static void invert(int[] o, int[] i) {
+        int[] t0 = new int[LIMBS], t1 = new int[LIMBS], t2 = new int[LIMBS], t3 = new int[LIMBS];
+        square(t0, i); // 2
+        square(t1, t0, 2); // 8
+        mul(t1, i, t1); // 9
+        mul(t0, t0, t1); // 11
+        square(t2, t0); // 22
+        mul(t1, t1, t2); // 2^5 - 1
+        square(t2, t1, 5);
+        mul(t1, t2, t1); // 2^10 - 1
+        square(t2, t1, 10);
+        mul(t2, t2, t1); // 2^20 - 1
+        square(t3, t2, 20);
+        mul(t2, t3, t2); // 2^40 - 1
+        square(t2, t2, 10);
+        mul(t1, t2, t1); // 2^50 - 1
+        square(t2, t1, 50);
+        mul(t2, t2, t1); // 2^100 - 1
+        square(t3, t2, 100);
+        mul(t2, t3, t2); // 2^200 - 1
+        square(t2, t2, 50);
+        mul(t1, t2, t1); // 2^250 - 1
+        square(t1, t1, 5); // 2^255 - 2^5
+        mul(o, t1, t0); // 2^255 - 21
+    }
+
+    /** o = a^(2^n) */
+    private static void square(int[] o, int[] a, int n) {
+        square(o, a);
+        for (int i = 1; i < n; ++i) {
+            square(o, o);
+        }
+    }
+
+    /** little endian, the top bit is ignored */
+    private static void unpack(int[] o, byte[] n) {
+        for (int i = 0, bit = 0; i < LIMBS; bit += width(i), ++i) {
+            long v = 0;
+            for (int k = 0, pos = bit >>> 3; k < 5 && pos + k < KEY_LENGTH; ++k) {
+                v |= (long) (n[pos + k] & 0xff) << (8 * k);
+            }
+            o[i] = (int) ((v >>> (bit & 7)) & ((1L << width(i)) - 1));
+        }
+    }
+
+    /** fully reduces a modulo 2^255 - 19 and writes it little endian */
+    private static void pack(byte[] o, int[] a) {
+        int[] h = a.clone();
+        // q is 1 if h >= p, else 0
+        int q = (19 * h[9] + (1 << 24)) >> 25;
+        for (int i = 0; i < LIMBS; ++i) {
+            q = (h[i] + q) >> width(i);
+        }
+        h[0] += 19 * q;
+        for (int i = 0; i < LIMBS - 1; ++i) {
+            int c = h[i] >> width(i);
+            h[i + 1] += c;
+            h[i] -= c << width(i);
+        }
+        h[9] &= (1 << 25) - 1;
+
+        long acc = 0;
+        int bits = 0;
+        int pos = 0;
+        for (int i = 0; i < LIMBS; ++i) {
+            acc |= (long) h[i] << bits;
+            bits += width(i);
+            while (bits >= 8) {
+                o[pos++] = (byte) acc;
+                acc >>>= 8;
+                bits -= 8;
+            }
+        }
+        o[pos] = (byte) acc;
+    }
+}
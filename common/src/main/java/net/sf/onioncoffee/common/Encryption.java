@@ -25,7 +25,6 @@ import java.nio.charset.Charset;
 import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.Key;
-import java.security.KeyFactory;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
@@ -112,7 +111,7 @@ public class Encryption {
     public static byte[] asymmetricEncrypt(byte[] data, byte[] aesKey, Key key) throws GeneralSecurityException {
         byte[] result = new byte[data.length + OAEP_BLOCK_SIZE_DIFFERENCE];
         // initialize OAEP
-        Cipher c = Cipher.getInstance(CIPHER_INSTANCE);
+        Cipher c = CryptoContext.get().getCipher(CIPHER_INSTANCE);
         c.init(Cipher.ENCRYPT_MODE, key);
         // apply RSA+OAEP
         c.doFinal(data, 0, OAEP_INPUT_BLOCK_SIZE, result);
@@ -150,7 +149,7 @@ public class Encryption {
 
         byte[] result = new byte[Math.max(data.length - OAEP_BLOCK_SIZE_DIFFERENCE, 128)];
         // init OAEP
-        Cipher c = Cipher.getInstance(CIPHER_INSTANCE);
+        Cipher c = CryptoContext.get().getCipher(CIPHER_INSTANCE);
         c.init(Cipher.DECRYPT_MODE, key);
         c.doFinal(data, 0, OAEP_OUTPUT_BLOCK_SIZE, result);
         // init AES
@@ -175,7 +174,7 @@ public class Encryption {
             BigInteger modulus = new BigInteger(bis.readOctetString(true));
             bis.readBerTag();
             BigInteger exponent = new BigInteger(bis.readOctetString(true));
-            return (RSAPublicKey) KeyFactory.getInstance("RSA").generatePublic(new RSAPublicKeySpec(modulus, exponent));
+            return (RSAPublicKey) CryptoContext.get().getKeyFactory(PK_ALGORITHM).generatePublic(new RSAPublicKeySpec(modulus, exponent));
         } catch (IOException e) {
             throw new RuntimeException(e);
         } catch (GeneralSecurityException e) {
@@ -220,8 +219,7 @@ public class Encryption {
      * 
      */
     public static byte[] getHash(String algorithm, byte[] input) throws GeneralSecurityException {
-        MessageDigest sha = MessageDigest.getInstance(algorithm);
-        sha.reset();
+        MessageDigest sha = CryptoContext.get().getMessageDigest(algorithm);
         sha.update(input, 0, input.length);
         return sha.digest();
     }
@@ -235,15 +233,16 @@ public class Encryption {
     }
 
     public static boolean verifySignature(String cipherName, String hashName, byte[] signature, PublicKey signingKey, byte[] data) throws GeneralSecurityException { 
-        Cipher cipher = Cipher.getInstance(cipherName);
+        Cipher cipher = CryptoContext.get().getCipher(cipherName);
         cipher.init(Cipher.DECRYPT_MODE, signingKey);
         return Arrays.equals(cipher.doFinal(signature), getHash(hashName, data));
     }
 
     public static byte[] signData(String cipherName, String hashName, byte[] data, PrivateKey signingKey) throws GeneralSecurityException {
-        Cipher cipher = Cipher.getInstance(cipherName);
+        byte[] hash = getHash(hashName, data);
+        Cipher cipher = CryptoContext.get().getCipher(cipherName);
         cipher.init(Cipher.ENCRYPT_MODE, signingKey);
-        return cipher.doFinal(getHash(hashName, data));
+        return cipher.doFinal(hash);
     }
 
 }
@@ -0,0 +1,173 @@
+/**
+ * OnionCoffee - Anonymous Communication through TOR Network
+ * Copyright (C) 2005-2007 RWTH Aachen University, Informatik IV
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA
+ */
+package net.sf.onioncoffee.common;
+
+import java.util.Arrays;
+
+/**
+ * a SHA-1 digest that keeps running while intermediate digests are taken. Tor
+ * digests every relay cell of a circuit into one running SHA-1 and puts the
+ * first four bytes of the digest so far into the cell. With a JCA
+ * MessageDigest this needs a clone() per cell, here the digest is finished on
+ * a snapshot of the state in scratch buffers of the object, which costs one or
+ * two compressions and no allocation.
+ *
+ * Not thread safe.
+ */
+public final class RunningSha1 {
+    public static final int DIGEST_LENGTH = 20;
+    private static final int BLOCK_LENGTH = 64;
+
+    private final int[] state = { 0x67452301, 0xefcdab89, 0x98badcfe, 0x10325476, 0xc3d2e1f0 };
+    private final byte[] block = new byte[BLOCK_LENGTH];
+    private long count = 0; // bytes digested so far
+
+    // scratch space for compressing and finishing snapshots
+    private final int[] w = new int[80];
+    private final int[] snapshot = new int[5];
+    private final byte[] padding = new byte[2 * BLOCK_LENGTH];
+
+    public RunningSha1() {
+    }
+
+    /**
+     * @param seed
+     *            digested right away
+     */
+    public RunningSha1(byte[] seed, int offset, int length) {
+        update(seed, offset, length);
+    }
+
+    public void update(byte[] data, int offset, int length) {
+        int fill = (int) (count & (BLOCK_LENGTH - 1));
+        count += length;
+        if (fill > 0) {
+            int n = Math.min(BLOCK_LENGTH - fill, length);
+            System.arraycopy(data, offset, block, fill, n);
+            offset += n;
+            length -= n;
+            if (fill + n < BLOCK_LENGTH) {
+                return;
+            }
+            compress(state, block, 0);
+        }
+        while (length >= BLOCK_LENGTH) {
+            compress(state, data, offset);
+            offset += BLOCK_LENGTH;
+            length -= BLOCK_LENGTH;
+        }
+        System.arraycopy(data, offset, block, 0, length);
+    }
+
+    /**
+     * @return the first four bytes of the digest of everything so far, big
+     *         endian, the running digest isn't affected
+     */
+    public int getDigestPrefix() {
+        finishSnapshot();
+        return snapshot[0];
+    }
+
+    /**
+     * writes the digest of everything so far, the running digest isn't
+     * affected
+     *
+     * @param out
+     *            needs DIGEST_LENGTH bytes from offset on
+     */
+    public void digest(byte[] out, int offset) {
+        finishSnapshot();
+        for (int i = 0; i < snapshot.length; ++i) {
+            int v = snapshot[i];
+            out[offset + 4 * i] = (byte) (v >>> 24);
+            out[offset + 4 * i + 1] = (byte) (v >>> 16);
+            out[offset + 4 * i + 2] = (byte) (v >>> 8);
+            out[offset + 4 * i + 3] = (byte) v;
+        }
+    }
+
+    /**
+     * copies the state and pads the pending bytes into the snapshot
+     */
+    private void finishSnapshot() {
+        System.arraycopy(state, 0, snapshot, 0, state.length);
+        int fill = (int) (count & (BLOCK_LENGTH - 1));
+        int end = (fill < BLOCK_LENGTH - 8) ? BLOCK_LENGTH : 2 * BLOCK_LENGTH;
+        System.arraycopy(block, 0, padding, 0, fill);
+        padding[fill] = (byte) 0x80;
+        Arrays.fill(padding, fill + 1, end - 8, (byte) 0);
+        long bits = count << 3;
+        for (int i = 1; i <= 8; ++i) {
+            padding[end - i] = (byte) bits;
+            bits >>>= 8;
+        }
+        compress(snapshot, padding, 0);
+        if (end > BLOCK_LENGTH) {
+            compress(snapshot, padding, BLOCK_LENGTH);
+        }
+    }
+
+    private void compress(int[] h, byte[] data, int offset) {
+        int[] w = this.w;
+        for (int i = 0; i < 16; ++i, offset += 4) {
+            w[i] = (data[offset] << 24) | ((data[offset + 1] & 0xff) << 16) | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+        }
+        for (int i = 16; i < 80; ++i) {
+            w[i] = Integer.rotateLeft(w[i - 3] ^ w[i - 8] ^ w[i - 14] ^ w[i - 16], 1);
+        }
+        int a = h[0], b = h[1], c = h[2], d = h[3], e = h[4];
+        int i = 0;
+        for (; i < 20; ++i) {
+            int t = Integer.rotateLeft(a, 5) + ((b & c) | (~b & d)) + e + w[i] + 0x5a827999;
+            e = d;
+            d = c;
+            c = Integer.rotateLeft(b, 30);
+            b = a;
+            a = t;
+        }
+        for (; i < 40; ++i) {
+            int t = Integer.rotateLeft(a, 5) + (b ^ c ^ d) + e + w[i] + 0x6ed9eba1;
+            e = d;
+            d = c;
+            c = Integer.rotateLeft(b, 30);
+            b = a;
+            a = t;
+        }
+        for (; i < 60; ++i) {
+            int t = Integer.rotateLeft(a, 5) + ((b & c) | (b & d) | (c & d)) + e + w[i] + 0x8f1bbcdc;
+            e = d;
+            d = c;
+            c = Integer.rotateLeft(b, 30);
+            b = a;
+            a = t;
+        }
+        for (; i < 80; ++i) {
+            int t = Integer.rotateLeft(a, 5) + (b ^ c ^ d) + e + w[i] + 0xca62c1d6;
+            e = d;
+            d = c;
+            c = Integer.rotateLeft(b, 30);
+            b = a;
+            a = t;
+        }
+        h[0] += a;
+        h[1] += b;
+        h[2] += c;
+        h[3] += d;
+        h[4] += e;
+    }
+}
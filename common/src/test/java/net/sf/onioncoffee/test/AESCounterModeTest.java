@@ -0,0 +1,45 @@
+package net.sf.onioncoffee.test;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import net.sf.onioncoffee.common.AESCounterMode;
+
+import org.junit.Test;
+
+public class AESCounterModeTest {
+
+    /**
+     * the key stream must continue seamlessly across calls of any length,
+     * including in place processing of relay cell payloads
+     */
+    @Test
+    public void testKeyStreamAcrossCalls() throws Exception {
+        Random random = new Random(42);
+        byte[] key = new byte[16];
+        random.nextBytes(key);
+        byte[] data = new byte[5000];
+        random.nextBytes(data);
+
+        // Tor uses AES-CTR with an IV of all zeros
+        Cipher reference = Cipher.getInstance("AES/CTR/NoPadding");
+        reference.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(new byte[16]));
+        byte[] expected = reference.doFinal(data);
+
+        AESCounterMode aes = new AESCounterMode(true, key);
+        byte[] actual = data.clone();
+        int[] chunks = { 1, 15, 509, 509, 3, 1000, 16, 1 };
+        int offset = 0;
+        for (int i = 0; offset < actual.length; ++i) {
+            int length = Math.min(chunks[i % chunks.length], actual.length - offset);
+            aes.processStream(actual, offset, actual, offset, length);
+            offset += length;
+        }
+        assertArrayEquals(expected, actual);
+    }
+}
@@ -0,0 +1,108 @@
+package net.sf.onioncoffee.test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import net.sf.onioncoffee.common.ByteRingBuffer;
+
+import org.junit.Test;
+
+public class ByteRingBufferTest {
+
+    /**
+     * a full ring takes nothing more, and bytes come out in order across the
+     * end of the array
+     */
+    @Test
+    public void testWrapAround() throws Exception {
+        ByteRingBuffer ring = new ByteRingBuffer(16);
+        assertEquals(16, ring.capacity());
+        byte[] data = new byte[40];
+        new Random(1).nextBytes(data);
+        byte[] read = new byte[40];
+
+        assertEquals(12, ring.offer(data, 0, 12));
+        assertEquals(12, ring.poll(read, 0, 12));
+        assertEquals(16, ring.offer(data, 12, 28));
+        assertEquals(0, ring.offer(data, 28, 12));
+        assertEquals(0, ring.free());
+        assertEquals(16, ring.poll(read, 12, 28));
+        assertEquals(0, ring.poll(read, 28, 12));
+        for (int i = 0; i < 28; ++i) {
+            assertEquals(data[i], read[i]);
+        }
+        ring.close();
+        assertEquals(-1, ring.poll(read, 0, 1));
+    }
+
+    /**
+     * a reader blocked on the stream gets every byte from a writer on another
+     * thread, then the end of the stream
+     */
+    @Test
+    public void testBlockingRead() throws Exception {
+        final ByteRingBuffer ring = new ByteRingBuffer(64);
+        final byte[] data = new byte[100000];
+        new Random(2).nextBytes(data);
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                for (int off = 0; off < data.length;) {
+                    off += ring.offer(data, off, Math.min(50, data.length - off));
+                    Thread.yield();
+                }
+                ring.close();
+            }
+        };
+        writer.start();
+        InputStream in = ring.getInputStream();
+        byte[] read = new byte[data.length];
+        int off = 0;
+        for (int n; (n = in.read(read, off, Math.min(37, read.length - off))) > 0;) {
+            off += n;
+        }
+        assertEquals(data.length, off);
+        assertArrayEquals(data, read);
+        assertEquals(-1, in.read());
+        writer.join();
+    }
+
+    /**
+     * closing the input stream on another thread drops what wasn't read and
+     * ends the stream for a reader that is blocked
+     */
+    @Test
+    public void testCloseInput() throws Exception {
+        final ByteRingBuffer ring = new ByteRingBuffer(16);
+        final InputStream in = ring.getInputStream();
+        final int[] read = { 0 };
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    read[0] = in.read(new byte[10]);
+                } catch (IOException e) {
+                }
+            }
+        };
+        reader.start();
+        for (int i = 0; i < 100 && reader.getState() != Thread.State.WAITING; ++i) {
+            Thread.sleep(10);
+        }
+        assertEquals(Thread.State.WAITING, reader.getState());
+        in.close();
+        reader.join(2000);
+        assertEquals(-1, read[0]);
+
+        ByteRingBuffer unread = new ByteRingBuffer(16);
+        assertEquals(10, unread.offer(new byte[10], 0, 10));
+        unread.getInputStream().close();
+        assertEquals(0, unread.available());
+        assertEquals(10, unread.offer(new byte[10], 0, 10));
+        assertEquals(-1, unread.poll(new byte[10], 0, 10));
+        assertEquals(0, unread.available());
+    }
+}
@@ -0,0 +1,52 @@
+package net.sf.onioncoffee.test;
+
+import static org.junit.Assert.*;
+
+import net.sf.onioncoffee.common.Curve25519;
+import net.sf.onioncoffee.common.Encoding;
+
+import org.junit.Test;
+
+public class Curve25519Test {
+
+    /**
+     * the test vectors of RFC 7748, sections 5.2 and 6.1
+     */
+    @Test
+    public void testRfc7748() throws Exception {
+        assertArrayEquals(Encoding.parseHex("c3da55379de9c6908e94ea4df28d084f32eccf03491c71f754b4075577a28552"), Curve25519.scalarMult(
+                Encoding.parseHex("a546e36bf0527c9d3b16154b82465edd62144c0ac1fc5a18506a2244ba449ac4"),
+                Encoding.parseHex("e6db6867583030db3594c1a424b15f7c726624ec26b3353b10a903a6d0ab1c4c")));
+
+        byte[] alice = Encoding.parseHex("77076d0a7318a57d3c16c17251b26645df4c2f87ebc0992ab177fba51db92c2a");
+        byte[] bob = Encoding.parseHex("5dab087e624a8a4b79e17f8b83800ee66f3bb1292618b6fd1c2f8b27ff88e0eb");
+        byte[] alicePublic = Curve25519.publicKey(alice);
+        byte[] bobPublic = Curve25519.publicKey(bob);
+        assertArrayEquals(Encoding.parseHex("8520f0098930a754748b7ddcb43ef75a0dbf3a0d26381af4eba4a98eaa9b4e6a"), alicePublic);
+        assertArrayEquals(Encoding.parseHex("de9edb7d7b7dc1b4d35b61c2ece435373f8343c85b78674dadfc7e146f882b4f"), bobPublic);
+        byte[] shared = Encoding.parseHex("4a5d9d5ba4ce2de1728e3bf480350f25e07e21c947d19e3376f09b3c1e161742");
+        assertArrayEquals(shared, Curve25519.scalarMult(alice, bobPublic));
+        assertArrayEquals(shared, Curve25519.scalarMult(bob, alicePublic));
+        assertFalse(Curve25519.isZero(shared));
+        assertTrue(Curve25519.isZero(Curve25519.scalarMult(alice, new byte[32])));
+    }
+
+    /**
+     * the iterated test of RFC 7748, section 5.2: k = X25519(k, u), u = old k
+     */
+    @Test
+    public void testIterated() throws Exception {
+        byte[] k = new byte[32];
+        k[0] = 9;
+        byte[] u = k.clone();
+        for (int i = 1; i <= 1000; ++i) {
+            byte[] next = Curve25519.scalarMult(k, u);
+            u = k;
+            k = next;
+            if (i == 1) {
+                assertArrayEquals(Encoding.parseHex("422c8e7a6227d7bca1350b3e2bb7279f7897b87bb6854b783c60e80311ae3079"), k);
+            }
+        }
+        assertArrayEquals(Encoding.parseHex("684cf59ba83309552800ef566f2f4d3c1c3887c49360e3875f2eb94d99532c51"), k);
+    }
+}
@@ -0,0 +1,42 @@
+package net.sf.onioncoffee.test;
+
+import static org.junit.Assert.*;
+
+import java.security.MessageDigest;
+import java.util.Random;
+
+import net.sf.onioncoffee.common.RunningSha1;
+
+import org.junit.Test;
+
+public class RunningSha1Test {
+
+    /**
+     * intermediate digests after updates of all sizes, crossing block
+     * boundaries and both padding cases, match the JCA implementation
+     */
+    @Test
+    public void testAgainstMessageDigest() throws Exception {
+        Random random = new Random(3);
+        byte[] data = new byte[3000];
+        random.nextBytes(data);
+
+        MessageDigest reference = MessageDigest.getInstance("SHA-1");
+        RunningSha1 sha1 = new RunningSha1();
+        byte[] digest = new byte[RunningSha1.DIGEST_LENGTH];
+        int[] chunks = { 0, 1, 54, 55, 56, 63, 64, 65, 509, 128, 7 };
+        int offset = 0;
+        for (int i = 0; offset < data.length; ++i) {
+            int length = Math.min(chunks[i % chunks.length], data.length - offset);
+            reference.update(data, offset, length);
+            sha1.update(data, offset, length);
+            offset += length;
+
+            byte[] expected = ((MessageDigest) reference.clone()).digest();
+            sha1.digest(digest, 0);
+            assertArrayEquals(expected, digest);
+            int prefix = ((expected[0] & 0xff) << 24) | ((expected[1] & 0xff) << 16) | ((expected[2] & 0xff) << 8) | (expected[3] & 0xff);
+            assertEquals(prefix, sha1.getDigestPrefix());
+        }
+    }
+}
@@ -78,6 +78,20 @@ public class Config {
                                                          // asocial way of
                                                          // building streams!!
 
+    // performance parameters
+    public static int cellPoolSize = 256; // recycled cells kept per connection
+    public static boolean cellPoolDebug = false; // detect use of released cells
+    public static int cellBatchSize = 32; // cells per write to a connection
+    public static int cellBatchDelayMicros = 200; // 0 to write every cell immediately
+    public static int flightRecorderSize = 4096; // cell events kept, 0 to disable
+    public static int cellThreads = 0; // threads for received cells, 0 for one per processor
+    public static int dhKeyPoolSize = 16; // precomputed DH keys at most, 0 to disable
+    public static boolean createFast = false; // CREATE_FAST for the first hop of new circuits, only on links whose CERTS were verified
+    public static int descriptorThreads = 0; // threads verifying descriptors, 0 for one per processor
+    public static int streamBufferSize = 64 * 1024; // received bytes buffered per stream for the application
+    public static int streamFlushDelay = 20; // milliseconds a partly filled DATA cell waits for more written data, 0 sends it right away
+    public static boolean optimisticData = false; // send the first data of streams before the exit connected
+
     // directory parameters
     public static int intervalDirectoryV1Refresh = 30; // in minutes longer, since it
                                                 // updates the complete
@@ -278,6 +292,19 @@ public class Config {
             circuitsMaximumNumber = parseInt(config, "circuitsMaximumNumber", circuitsMaximumNumber);
 
             veryAggressiveStreamBuilding = parseBoolean(config, "veryAggressiveStreamBuilding", veryAggressiveStreamBuilding);
+            // performance parameters
+            cellPoolSize = parseInt(config, "CellPoolSize", cellPoolSize);
+            cellPoolDebug = parseBoolean(config, "CellPoolDebug", cellPoolDebug);
+            cellBatchSize = parseInt(config, "CellBatchSize", cellBatchSize);
+            cellBatchDelayMicros = parseInt(config, "CellBatchDelayMicros", cellBatchDelayMicros);
+            flightRecorderSize = parseInt(config, "FlightRecorderSize", flightRecorderSize);
+            cellThreads = parseInt(config, "CellThreads", cellThreads);
+            dhKeyPoolSize = parseInt(config, "DhKeyPoolSize", dhKeyPoolSize);
+            createFast = parseBoolean(config, "CreateFast", createFast);
+            descriptorThreads = parseInt(config, "DescriptorThreads", descriptorThreads);
+            streamBufferSize = parseInt(config, "StreamBufferSize", streamBufferSize);
+            streamFlushDelay = parseInt(config, "StreamFlushDelay", streamFlushDelay);
+            optimisticData = parseBoolean(config, "OptimisticData", optimisticData);
             // directory parameters
             intervalDirectoryV1Refresh = parseInt(config, "DirectoryV1Refresh", intervalDirectoryV1Refresh);
             intervalDirectoryRefresh = parseInt(config, "DirectoryRefresh", intervalDirectoryRefresh);
@@ -368,6 +395,20 @@ public class Config {
 
             config.append(writeBoolean("veryAggressiveStreamBuilding", veryAggressiveStreamBuilding));
 
+            // performance parameters
+            config.append(writeInt("CellPoolSize", cellPoolSize));
+            config.append(writeBoolean("CellPoolDebug", cellPoolDebug));
+            config.append(writeInt("CellBatchSize", cellBatchSize));
+            config.append(writeInt("CellBatchDelayMicros", cellBatchDelayMicros));
+            config.append(writeInt("FlightRecorderSize", flightRecorderSize));
+            config.append(writeInt("CellThreads", cellThreads));
+            config.append(writeInt("DhKeyPoolSize", dhKeyPoolSize));
+            config.append(writeBoolean("CreateFast", createFast));
+            config.append(writeInt("DescriptorThreads", descriptorThreads));
+            config.append(writeInt("StreamBufferSize", streamBufferSize));
+            config.append(writeInt("StreamFlushDelay", streamFlushDelay));
+            config.append(writeBoolean("OptimisticData", optimisticData));
+
             // FIXME: Check if this really works
             config.append(writeFloat("RankingTransferPerServerUpdate", rankingTransferPerServerUpdate));
             // directory parameters
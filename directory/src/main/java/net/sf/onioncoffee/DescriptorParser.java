@@ -0,0 +1,149 @@
+/**
+ * OnionCoffee - Anonymous Communication through TOR Network
+ * Copyright (C) 2005-2007 RWTH Aachen University, Informatik IV
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA
+ */
+package net.sf.onioncoffee;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * parses and verifies the server descriptors of directory responses on a
+ * pool of threads. A response is split into descriptors, the descriptors into
+ * a few batches per thread, and every batch is parsed, checked against the
+ * fingerprint and the signature and published to the directory as a whole.
+ * The thread that hands in the response doesn't wait for any of it.
+ *
+ * @version unstable
+ */
+public class DescriptorParser {
+    private static final String DESCRIPTOR_START = "router ";
+    private static final String DESCRIPTOR_END = "-----END SIGNATURE-----";
+    private static final int BATCHES_PER_THREAD = 2;
+    private static final int MIN_BATCH_SIZE = 8;
+
+    /**
+     * receives the results of a batch, on the thread that parsed it, after the
+     * valid servers have been published
+     */
+    public interface Listener {
+        /**
+         * @param valid
+         *            the verified descriptors by fingerprint
+         * @param invalid
+         *            the fingerprints of descriptors that failed
+         */
+        void parsed(Map<String, String> valid, List<String> invalid);
+    }
+
+    private final ExecutorService executor;
+    private final int threads;
+
+    public DescriptorParser() {
+        this(Config.descriptorThreads > 0 ? Config.descriptorThreads : Runtime.getRuntime().availableProcessors());
+    }
+
+    public DescriptorParser(int threads) {
+        this.threads = Math.max(1, threads);
+        executor = Executors.newFixedThreadPool(this.threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread retVal = new Thread(r, "DescriptorParser");
+                retVal.setDaemon(true);
+                return retVal;
+            }
+        });
+    }
+
+    /**
+     * splits a response into descriptors, each from a line starting with
+     * "router " to the end of the router signature
+     */
+    public static List<String> split(String response) {
+        List<String> retVal = new ArrayList<String>();
+        int start = 0;
+        while ((start = response.indexOf(DESCRIPTOR_START, start)) >= 0) {
+            if (start > 0 && response.charAt(start - 1) != '\n') {
+                start += DESCRIPTOR_START.length();
+                continue;
+            }
+            int end = response.indexOf(DESCRIPTOR_END, start);
+            if (end < 0) {
+                break;
+            }
+            end += DESCRIPTOR_END.length();
+            retVal.add(response.substring(start, end));
+            start = end;
+        }
+        return retVal;
+    }
+
+    /**
+     * parses all descriptors of a response in the background
+     *
+     * @param listener
+     *            may be null
+     * @return counted down for every batch that is done
+     */
+    public CountDownLatch parse(Directory directory, String response, Listener listener) {
+        return parse(directory, split(response), listener);
+    }
+
+    public CountDownLatch parse(final Directory directory, List<String> descriptors, final Listener listener) {
+        int batchSize = Math.max(MIN_BATCH_SIZE, (descriptors.size() + threads * BATCHES_PER_THREAD - 1) / (threads * BATCHES_PER_THREAD));
+        final CountDownLatch retVal = new CountDownLatch((descriptors.size() + batchSize - 1) / batchSize);
+        for (int i = 0; i < descriptors.size(); i += batchSize) {
+            final List<String> batch = descriptors.subList(i, Math.min(descriptors.size(), i + batchSize));
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        parseBatch(directory, batch, listener);
+                    } finally {
+                        retVal.countDown();
+                    }
+                }
+            });
+        }
+        return retVal;
+    }
+
+    private static void parseBatch(Directory directory, List<String> batch, Listener listener) {
+        Map<String, String> valid = new HashMap<String, String>();
+        List<String> invalid = new ArrayList<String>();
+        for (String descriptor : batch) {
+            String fingerprint = Server.parseDescriptorFingerprint(descriptor);
+            Server server = directory.getServers().get(fingerprint);
+            if (server != null && directory.verifyServer(server, descriptor)) {
+                valid.put(fingerprint, descriptor);
+            } else {
+                invalid.add(fingerprint);
+            }
+        }
+        directory.publishServers(valid.keySet());
+        if (listener != null) {
+            listener.parsed(valid, invalid);
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -22,6 +22,7 @@ import java.net.UnknownHostException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
@@ -96,12 +97,21 @@ public class Directory {
     }
     
     public boolean parseServer(Server server, String serverDescriptor) {
+        boolean retVal = verifyServer(server, serverDescriptor);
+        if (retVal) {
+            publishServers(Collections.singleton(server.getFingerprint()));
+        }
+        return retVal;
+    }
+
+    /**
+     * parses and verifies a descriptor, without adding the server to the
+     * valid servers yet
+     */
+    boolean verifyServer(Server server, String serverDescriptor) {
         boolean retVal = false;
         try {
           if (server.parseDescriptor(serverDescriptor)) {
-              synchronized (validServers) {
-                  validServers.add(server.getFingerprint());
-              }
               retVal = true;
               if (getLog().isTraceEnabled()) {
                   getLog().trace("got server " + server.getFingerprint());
@@ -113,6 +123,15 @@ public class Directory {
         }
         return retVal;
     }
+
+    /**
+     * adds verified servers to the valid servers, all at once
+     */
+    void publishServers(Collection<String> fingerprints) {
+        synchronized (validServers) {
+            validServers.addAll(fingerprints);
+        }
+    }
  
     public void parseConsensus(String consensus)  {
         
@@ -90,6 +90,8 @@ public class Server  {
 
     PublicKey onionKey;
     PublicKey signingKey;
+    // Curve25519 key for the ntor handshake, null if the server has none
+    byte[] ntorOnionKey;
 
     ExitPolicy exitpolicy = new ExitPolicy();
 
@@ -379,6 +381,16 @@ public class Server  {
         String stringOnionKey = RegexUtil.parseStringByRE(descriptor, "^onion-key\n(.*?END RSA PUBLIC KEY......)", "");
         onionKey = Encryption.extractRSAKey(stringOnionKey);
 
+        // ntor onion key
+        String stringNtorOnionKey = RegexUtil.parseStringByRE(descriptor, "^ntor-onion-key (\\S+)", "");
+        if (!"".equals(stringNtorOnionKey)) {
+            ntorOnionKey = Encoding.parseBase64(stringNtorOnionKey);
+            if (ntorOnionKey.length != 32) {
+                getLog().warn("Server " + getName() + " has a broken ntor-onion-key");
+                ntorOnionKey = null;
+            }
+        }
+
         // signing key
         String stringSigningKey = RegexUtil.parseStringByRE(descriptor, "^signing-key\n(.*?END RSA PUBLIC KEY-----\n)", "");
         signingKey = Encryption.extractRSAKey(stringSigningKey);
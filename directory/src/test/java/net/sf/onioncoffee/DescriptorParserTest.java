@@ -0,0 +1,125 @@
+package net.sf.onioncoffee;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import net.sf.onioncoffee.common.Encoding;
+import net.sf.onioncoffee.common.RegexUtil;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Resources;
+
+public class DescriptorParserTest {
+    private static final String DESCRIPTOR = "router a 10.0.0.1 9001 0 9030\ncontact my router at home\nrouter-signature\n-----BEGIN SIGNATURE-----\nabc\n-----END SIGNATURE-----";
+
+    private final DescriptorParser parser = new DescriptorParser(2);
+
+    @After
+    public void tearDown() {
+        parser.shutdown();
+    }
+
+    /**
+     * "router " within a line doesn't start a descriptor
+     */
+    @Test
+    public void testSplitLineStart() {
+        String response = "platform my router 1\n" + DESCRIPTOR + "\n";
+        assertEquals(Collections.singletonList(DESCRIPTOR), DescriptorParser.split(response));
+    }
+
+    /**
+     * a last descriptor without the end of its signature is dropped
+     */
+    @Test
+    public void testSplitTruncated() {
+        String response = DESCRIPTOR + "\nrouter b 10.0.0.2 9001 0 9030\nrouter-signature\n-----BEGIN SIGNATURE-----\nab";
+        assertEquals(Collections.singletonList(DESCRIPTOR), DescriptorParser.split(response));
+    }
+
+    /**
+     * the latch counts exactly the batches, every batch reports once
+     */
+    @Test
+    public void testBatches() throws Exception {
+        assertEquals(0, parser.parse(new Directory(), Collections.<String> emptyList(), null).getCount());
+        assertEquals(1, batches(3));
+        // 2 threads with 2 batches each
+        assertEquals(4, batches(96));
+        // batches of at least 8
+        assertEquals(3, batches(20));
+    }
+
+    private int batches(int descriptors) throws InterruptedException {
+        final AtomicInteger batches = new AtomicInteger();
+        final AtomicInteger parsed = new AtomicInteger();
+        String[] batch = new String[descriptors];
+        Arrays.fill(batch, DESCRIPTOR);
+        CountDownLatch done = parser.parse(new Directory(), Arrays.asList(batch), new DescriptorParser.Listener() {
+            public void parsed(Map<String, String> valid, List<String> invalid) {
+                batches.incrementAndGet();
+                parsed.addAndGet(valid.size() + invalid.size());
+            }
+        });
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(descriptors, parsed.get());
+        return batches.get();
+    }
+
+    /**
+     * the bundled descriptors are all found, and the parser publishes the same
+     * servers as parsing them one after the other
+     */
+    @Test
+    public void testMultiServer() throws Exception {
+        String descriptors = Resources.toString(Resources.getResource("examples/server/multi-server.txt"), Charsets.US_ASCII);
+        List<String> split = DescriptorParser.split(descriptors);
+        assertEquals(96, split.size());
+        String consensus = consensus(split);
+
+        Directory serial = new Directory();
+        serial.parseConsensus(consensus);
+        for (String descriptor : split) {
+            serial.parseServer(serial.getServers().get(Server.parseDescriptorFingerprint(descriptor)), descriptor);
+        }
+        assertFalse(serial.getValidServers().isEmpty());
+
+        Directory pipeline = new Directory();
+        pipeline.parseConsensus(consensus);
+        assertTrue(parser.parse(pipeline, descriptors, null).await(60, TimeUnit.SECONDS));
+        assertEquals(serial.getValidServers(), pipeline.getValidServers());
+    }
+
+    /**
+     * the bundled consensus with an entry for every descriptor, which aren't
+     * part of it
+     */
+    private static String consensus(List<String> descriptors) throws IOException {
+        StringBuilder entries = new StringBuilder();
+        for (String descriptor : descriptors) {
+            Matcher m = Pattern.compile("^router (\\S+) (\\S+) (\\d+) \\d+ (\\d+)", Pattern.MULTILINE).matcher(descriptor);
+            assertTrue(m.find());
+            String fingerprint = Encoding.toBase64(Encoding.parseHex(Server.parseDescriptorFingerprint(descriptor))).replace("=", "");
+            String published = RegexUtil.parseStringByRE(descriptor, "^published (\\S+ \\S+)", "");
+            entries.append("r ").append(m.group(1)).append(' ').append(fingerprint).append(" AAAAAAAAAAAAAAAAAAAAAAAAAAA ")
+                    .append(published).append(' ').append(m.group(2)).append(' ').append(m.group(3)).append(' ').append(m.group(4))
+                    .append("\ns Fast Running Stable Valid\nv Tor 0.2.1.16-rc\nw Bandwidth=100\np reject 1-65535\n");
+        }
+        String bundled = Resources.toString(Resources.getResource("consensus"), Charsets.US_ASCII);
+        int end = bundled.indexOf("directory-signature");
+        return bundled.substring(0, end) + entries + bundled.substring(end);
+    }
+}
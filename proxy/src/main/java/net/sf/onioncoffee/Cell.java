@@ -18,8 +18,8 @@
 package net.sf.onioncoffee;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import net.sf.onioncoffee.common.Encoding;
 
@@ -37,6 +37,8 @@ import org.slf4j.LoggerFactory;
  */
 
 public class Cell {
+    private static final Logger LOG = LoggerFactory.getLogger(Cell.class);
+
     public enum CellType {
         CELL_PADDING((byte)0, "padding"), 
         CELL_CREATE((byte)1, "create"), 
@@ -44,7 +46,24 @@ public class Cell {
         CELL_RELAY((byte)3, "relay"),
         CELL_DESTROY((byte)4, "destroy"), 
         CELL_CREATE_FAST((byte)5, "create-fast"), 
-        CELL_CREATED_FAST((byte)6, "created-fast");
+        CELL_CREATED_FAST((byte)6, "created-fast"),
+        CELL_VERSIONS((byte)7, "versions"),
+        CELL_NETINFO((byte)8, "netinfo"),
+        CELL_RELAY_EARLY((byte)9, "relay-early"),
+        CELL_CREATE2((byte)10, "create2"),
+        CELL_CREATED2((byte)11, "created2"),
+        CELL_VPADDING((byte)128, "vpadding"),
+        CELL_CERTS((byte)129, "certs"),
+        CELL_AUTH_CHALLENGE((byte)130, "auth-challenge"),
+        CELL_AUTHENTICATE((byte)131, "authenticate"),
+        CELL_AUTHORIZE((byte)132, "authorize");
+
+        private static final CellType[] BY_VALUE = new CellType[256];
+        static {
+            for (CellType type : values()) {
+                BY_VALUE[type.value & 0xff] = type;
+            }
+        }
 
         public final byte value;
         public final String name;
@@ -60,14 +79,7 @@ public class Cell {
         }
 
         static CellType fromByte(byte val) {
-            CellType retVal = null;
-            for (CellType type : CellType.values()) {
-                if (val == type.value) {
-                    retVal = type;
-                    break;
-                }
-            }
-            return retVal;
+            return BY_VALUE[val & 0xff];
         }
     }
 
@@ -78,21 +90,48 @@ public class Cell {
     static final int CELL_CIRCID_POS = 0;
     static final int CELL_COMMAND_POS = CELL_CIRCID_POS + CELL_CIRCID_SIZE;
     static final int CELL_PAYLOAD_POS = CELL_COMMAND_POS + CELL_COMMAND_SIZE;
+    static final int CELL_LENGTH_SIZE = 2; // of variable-length cells
+    static final int CELL_CIRCID_SIZE_V4 = 4; // from link protocol 4 on
+    static final int CELL_TOTAL_SIZE_V4 = CELL_TOTAL_SIZE + CELL_CIRCID_SIZE_V4 - CELL_CIRCID_SIZE;
+
+    /* link protocol versions we offer in our VERSIONS cell, ascending */
+    static final int[] LINK_VERSIONS = { 3, 4 };
 
     /* Circuit for sending data or circuit that needs to be created */
     private Circuit outCircuit;
     public CellType command;
-    public final byte[] payload =  new byte[Cell.CELL_PAYLOAD_SIZE];
-    public final int circuitId;
+    public int circuitId;
+    /*
+     * the payload of the cell. Cells that are created locally own a heap
+     * buffer. Received cells are copied out of the TLS buffer into the payload
+     * of a pooled cell by CellDecoder and decrypted there in place. The data
+     * of a stream is copied once more into its ring buffer, and from there by
+     * the application's read.
+     */
+    protected ByteBuffer payload;
+    private ByteBuffer ownPayload;
+    /* the pool the cell goes back to on release(), null if not pooled */
+    CellPool pool;
+    boolean released = false;
 
     protected Logger getLog() {
-        return LoggerFactory.getLogger(getClass());
+        return LOG;
     }
 
     Cell(Circuit outCircuit, int circuitId, CellType command) {
+        this(outCircuit, circuitId, command, ByteBuffer.allocate(Cell.CELL_PAYLOAD_SIZE));
+        ownPayload = payload;
+    }
+
+    /**
+     * creates a cell on top of an existing payload buffer, without copying it.
+     * The buffer needs to be array backed and exactly CELL_PAYLOAD_SIZE bytes long.
+     */
+    Cell(Circuit outCircuit, int circuitId, CellType command, ByteBuffer payload) {
         this.command = command;
         this.outCircuit = outCircuit;
         this.circuitId = circuitId;
+        this.payload = payload;
     }
 
     Cell(Circuit outCircuit, CellType command) {
@@ -108,6 +147,89 @@ public class Cell {
         this(outCircuit, outCircuit.getId(), command, payload);
     }
 
+    /**
+     * re-initializes a recycled cell. Called by the pool only.
+     * 
+     * @param view
+     *            the payload to wrap, or null to use the cleared payload owned
+     *            by this cell
+     */
+    void recycle(Circuit outCircuit, int circuitId, CellType command, ByteBuffer view) {
+        this.outCircuit = outCircuit;
+        this.circuitId = circuitId;
+        this.command = command;
+        this.released = false;
+        if (view != null) {
+            payload = view;
+        } else {
+            payload = ownPayload();
+            // the previous content must not leak into the padding
+            Arrays.fill(payload.array(), (byte) 0);
+        }
+    }
+
+    /**
+     * @return the payload owned by this cell, which is created if necessary
+     */
+    ByteBuffer ownPayload() {
+        if (ownPayload == null) {
+            ownPayload = ByteBuffer.allocate(Cell.CELL_PAYLOAD_SIZE);
+        }
+        return ownPayload;
+    }
+
+    /**
+     * hands the cell back to the pool it was taken from. Whoever consumes the
+     * cell last has to call this, afterwards the cell must not be touched
+     * anymore. Does nothing for cells that are not pooled.
+     */
+    public void release() {
+        if (pool != null) {
+            pool.release(this);
+        }
+    }
+
+    protected final void checkReleased() {
+        if (released) {
+            throw new IllegalStateException("cell " + command + " on circuit " + circuitId + " used after release");
+        }
+    }
+
+    /**
+     * VERSIONS and all commands from 128 on have a length field instead of a
+     * fixed payload size
+     */
+    static boolean isVariableLength(int command) {
+        return command == CellType.CELL_VERSIONS.value || (command & 0xff) >= 128;
+    }
+
+    /**
+     * @return the size of the circuit ids on a connection that talks the given
+     *         link protocol version
+     */
+    static int getCircuitIdSize(int linkVersion) {
+        return linkVersion >= 4 ? CELL_CIRCID_SIZE_V4 : CELL_CIRCID_SIZE;
+    }
+
+    /**
+     * picks the highest link protocol version that both, we and the router,
+     * support.
+     * 
+     * @param versions
+     *            the payload of the VERSIONS cell of the router
+     * @return the version, or 0 if there is none in common
+     */
+    static int negotiateVersion(ByteBuffer versions) {
+        int retVal = 0;
+        for (int i = 0; i + 1 < versions.limit(); i += 2) {
+            int version = versions.getShort(i) & 0xffff;
+            if (version > retVal && Arrays.binarySearch(LINK_VERSIONS, version) >= 0) {
+                retVal = version;
+            }
+        }
+        return retVal;
+    }
+
     /** is this a padding cell? */
     public boolean isTypePadding() {
         return this.command == CellType.CELL_PADDING;
@@ -119,67 +241,90 @@ public class Cell {
     }
     
     /**
-     * concatenate all data to a single byte-array. This function is used to finally
-     * transmit the cell over a line.
+     * concatenate all data to a single byte-array.
+     * 
+     * @see #encodeTo(ByteBuffer)
      */
     public byte[] toByteArray() {
         byte[] buff = new byte[Cell.CELL_TOTAL_SIZE];
-        getLog().trace("Cell.toByteArray()");
-        System.arraycopy(Encoding.intToNByteArray(getCircuit().getId(), Cell.CELL_CIRCID_SIZE), 0, buff, Cell.CELL_CIRCID_POS, Cell.CELL_CIRCID_SIZE);
-        buff[Cell.CELL_COMMAND_POS] = this.command.value;
-        System.arraycopy(this.payload, 0, buff, CELL_PAYLOAD_POS, this.payload.length);
+        encodeTo(ByteBuffer.wrap(buff));
         return buff;
     }
 
-    public static byte[] readNBytes(InputStream in, int bytes) throws IOException {
-        byte[] retVal = new byte[bytes];
-        int filled = 0;
-        while (filled < bytes) {
-            int n = in.read(retVal, filled, bytes - filled);
-            if (n < 0) {
-                throw new IOException("readNBytes reached EOF");
-            }
-            filled += n;
-        }
-        return retVal;
+    /**
+     * writes the cell with 2 byte circuit ids, as used up to link protocol 3
+     * 
+     * @see #encodeTo(ByteBuffer, int)
+     */
+    public void encodeTo(ByteBuffer out) {
+        encodeTo(out, Cell.CELL_CIRCID_SIZE);
     }
-    
+
     /**
-     * initialize cell from stream Attention: this.outCircuit is not set!
+     * writes the cell to the buffer at its current position and advances the
+     * position by the encoded size, which is the header and PAYLOAD_SIZE for
+     * all but variable-length cells. This function is used to finally transmit
+     * the cell over a line. Encoding is idempotent, encoding the same cell
+     * again writes the same bytes.
      * 
-     * @param in
-     *            the input stream from a TLS-line to read the data from
+     * @param out
+     *            needs at least getEncodedSize() bytes remaining
+     * @param circuitIdSize
+     *            2 or 4, depending on the link protocol. VERSIONS cells always
+     *            use 2
      */
-    public static Cell read(InputStream in, Map<Integer, Circuit> circuitMap) throws IOException {
-        return read(readNBytes(in, CELL_TOTAL_SIZE), circuitMap);
+    public void encodeTo(ByteBuffer out, int circuitIdSize) {
+        checkReleased();
+        seal();
+        if (command == CellType.CELL_VERSIONS) {
+            circuitIdSize = Cell.CELL_CIRCID_SIZE;
+        }
+        int start = out.position();
+        int id = getCircuit() != null ? getCircuit().getId() : circuitId;
+        if (circuitIdSize == Cell.CELL_CIRCID_SIZE_V4) {
+            out.putInt(start + Cell.CELL_CIRCID_POS, id);
+        } else {
+            out.putShort(start + Cell.CELL_CIRCID_POS, (short) id);
+        }
+        int payloadPos = start + circuitIdSize + Cell.CELL_COMMAND_SIZE;
+        out.put(payloadPos - Cell.CELL_COMMAND_SIZE, this.command.value);
+        int length = payload.limit();
+        if (isVariableLength(command.value)) {
+            out.putShort(payloadPos, (short) length);
+            payloadPos += Cell.CELL_LENGTH_SIZE;
+        }
+        out.position(payloadPos);
+        out.put(payload.array(), payload.arrayOffset(), length);
     }
-    
-    public static Cell read(byte[] data, Map<Integer, Circuit> circuitMap) throws IOException {
-        return read(data, 0, circuitMap);
+
+    /**
+     * @return the number of bytes encodeTo(ByteBuffer) writes
+     */
+    public int getEncodedSize() {
+        return getEncodedSize(Cell.CELL_CIRCID_SIZE);
     }
-    
-    public static Cell read(byte[] data, int offset, Map<Integer, Circuit> circuitMap) throws IOException {
-        Cell retVal = null;
-        CellType command = CellType.fromByte(data[Cell.CELL_COMMAND_POS  + offset]);
-        int circuitId = Encoding.byteArrayToInt(data, Cell.CELL_CIRCID_POS +  offset, Cell.CELL_CIRCID_SIZE);
-        Circuit circuit = circuitMap.get(circuitId);
-
-        byte[] payload = new byte[Cell.CELL_PAYLOAD_SIZE]; 
-        System.arraycopy(data, Cell.CELL_PAYLOAD_POS + offset, payload, 0, Cell.CELL_PAYLOAD_SIZE);
-        if (command == CellType.CELL_RELAY) {
-            try {
-                CellRelay.decryptPayload(payload, circuit);
-                retVal = new CellRelay(circuit, circuitId, payload);
-            } catch (RuntimeException e) {
-                e.printStackTrace();
-                throw e;
-            }
-        } else {
-            retVal = new Cell(circuit, circuitId, command, payload);
+
+    /**
+     * @return the number of bytes encodeTo(ByteBuffer, int) writes
+     */
+    public int getEncodedSize(int circuitIdSize) {
+        if (command == CellType.CELL_VERSIONS) {
+            circuitIdSize = Cell.CELL_CIRCID_SIZE;
+        }
+        int retVal = circuitIdSize + Cell.CELL_COMMAND_SIZE + payload.limit();
+        if (isVariableLength(command.value)) {
+            retVal += Cell.CELL_LENGTH_SIZE;
         }
         return retVal;
     }
 
+    /**
+     * finishes the payload before it is encoded for the first time, called by
+     * encodeTo(). Must only touch the payload once.
+     */
+    protected void seal() {
+    }
+
     public void setCircuit(Circuit outCircuit) {
         this.outCircuit = outCircuit;
     }
@@ -193,6 +338,17 @@ public class Cell {
     }
     
     public void applyPayload(byte[] newPayload, int length) {
-        System.arraycopy(newPayload, 0, payload, 0, Math.min(payload.length, length));
+        checkReleased();
+        System.arraycopy(newPayload, 0, payload.array(), payload.arrayOffset(), Math.min(payload.limit(), length));
+    }
+
+    /**
+     * @return a copy of the payload
+     */
+    public byte[] extractPayload() {
+        checkReleased();
+        byte[] retVal = new byte[payload.limit()];
+        System.arraycopy(payload.array(), payload.arrayOffset(), retVal, 0, retVal.length);
+        return retVal;
     }
 }
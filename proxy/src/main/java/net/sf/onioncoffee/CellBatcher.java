@@ -0,0 +1,136 @@
+/**
+ * OnionCoffee - Anonymous Communication through TOR Network
+ * Copyright (C) 2005-2007 RWTH Aachen University, Informatik IV
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA
+ */
+package net.sf.onioncoffee;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.future.IoFutureListener;
+import org.apache.mina.core.future.WriteFuture;
+import org.apache.mina.core.session.IoSession;
+
+/**
+ * collects the outgoing cells of one connection in a buffer and hands them
+ * to MINA as a single write, so that a TLS record and a syscall carry many
+ * cells instead of one. A batch is flushed when it's full or when the oldest
+ * cell in it has waited for the configured delay. The buffers are heap
+ * buffers, the TLS filter copies them anyway, and they are used again once
+ * MINA has written them.
+ *
+ * Cells are encoded while holding the lock of the batcher. Relay cells are
+ * encrypted during encoding, so this also guarantees that the cipher streams
+ * advance in the same order in which the cells go over the wire.
+ *
+ * @version unstable
+ */
+class CellBatcher implements Runnable {
+    // buffers kept for the next batches, more are only in flight on a slow link
+    private static final int MAX_FREE = 4;
+
+    private final IoSession session;
+    private final ScheduledExecutorService scheduler;
+    private final int batchSize;
+    private final long delayMicros;
+    private final int capacity;
+    private final Deque<IoBuffer> free = new ArrayDeque<IoBuffer>();
+    private int circuitIdSize = Cell.CELL_CIRCID_SIZE;
+
+    private IoBuffer batch;
+    private ScheduledFuture<?> pendingFlush;
+
+    /**
+     * @param batchSize
+     *            maximum number of cells in one write
+     * @param delayMicros
+     *            maximum time a cell is held back, 0 writes every cell
+     *            immediately
+     */
+    CellBatcher(IoSession session, ScheduledExecutorService scheduler, int batchSize, long delayMicros) {
+        this.session = session;
+        this.scheduler = scheduler;
+        this.batchSize = Math.max(1, batchSize);
+        this.delayMicros = delayMicros;
+        this.capacity = this.batchSize * Cell.CELL_TOTAL_SIZE_V4;
+    }
+
+    /**
+     * switches to the circuit id width of the negotiated link protocol, for
+     * all cells written from now on
+     */
+    synchronized void setCircuitIdSize(int circuitIdSize) {
+        this.circuitIdSize = circuitIdSize;
+    }
+
+    synchronized void write(Cell c) {
+        int size = c.getEncodedSize(circuitIdSize);
+        if (batch != null && batch.remaining() < size) {
+            flush();
+        }
+        if (batch == null) {
+            batch = size <= capacity ? free.poll() : null;
+            if (batch == null) {
+                batch = IoBuffer.allocate(Math.max(size, capacity), false);
+            }
+        }
+        c.encodeTo(batch.buf(), circuitIdSize);
+        if (batch.remaining() < Cell.CELL_TOTAL_SIZE_V4 || delayMicros <= 0) {
+            flush();
+        } else if (pendingFlush == null) {
+            pendingFlush = scheduler.schedule(this, delayMicros, TimeUnit.MICROSECONDS);
+        }
+    }
+
+    /** writes out everything that is pending */
+    synchronized void flush() {
+        if (pendingFlush != null) {
+            pendingFlush.cancel(false);
+            pendingFlush = null;
+        }
+        if (batch == null || batch.position() == 0) {
+            return;
+        }
+        batch.flip();
+        final IoBuffer written = batch;
+        batch = null;
+        session.write(written).addListener(new IoFutureListener<WriteFuture>() {
+            public void operationComplete(WriteFuture future) {
+                recycle(written);
+            }
+        });
+    }
+
+    /** takes back a batch MINA is done with */
+    private synchronized void recycle(IoBuffer buffer) {
+        if (buffer.capacity() == capacity && free.size() < MAX_FREE) {
+            buffer.clear();
+            free.push(buffer);
+        }
+    }
+
+    /** deadline of the pending batch has passed */
+    public void run() {
+        synchronized (this) {
+            pendingFlush = null;
+            flush();
+        }
+    }
+}
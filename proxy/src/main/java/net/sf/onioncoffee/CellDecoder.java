@@ -0,0 +1,121 @@
+/**
+ * OnionCoffee - Anonymous Communication through TOR Network
+ * Copyright (C) 2005-2007 RWTH Aachen University, Informatik IV
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA
+ */
+package net.sf.onioncoffee;
+
+import java.nio.ByteBuffer;
+
+import net.sf.onioncoffee.Cell.CellType;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.session.AttributeKey;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.codec.CumulativeProtocolDecoder;
+import org.apache.mina.filter.codec.ProtocolDecoderOutput;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * cuts the decrypted TLS stream into cells, both fixed size and
+ * variable-length ones. Partial cells are kept by the CumulativeProtocolDecoder
+ * until the rest arrives.
+ *
+ * The decoder only does the framing: fixed size cells are copied into cells of
+ * the connection's pool. The handler gets them on the I/O thread and hands
+ * them to the CircuitExecutor, which decrypts relay cells and dispatches them
+ * on the shard of their circuit.
+ *
+ * The width of the circuit ids depends on the link protocol version, which is
+ * why the version is negotiated here, right when the VERSIONS cell of the
+ * router is decoded: the cells following it in the same read may already use
+ * the new width.
+ *
+ * @version unstable
+ */
+public class CellDecoder extends CumulativeProtocolDecoder {
+    private static final Logger LOG = LoggerFactory.getLogger(CellDecoder.class);
+
+    /** the negotiated link protocol version, absent until VERSIONS was received */
+    static final AttributeKey LINK_VERSION = new AttributeKey(CellDecoder.class, "linkVersion");
+
+    private final CellPool pool;
+
+    public CellDecoder(CellPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * @return the size of the circuit ids currently used on the session
+     */
+    static int getCircuitIdSize(IoSession session) {
+        Integer version = (Integer) session.getAttribute(LINK_VERSION);
+        return version == null ? Cell.CELL_CIRCID_SIZE : Cell.getCircuitIdSize(version);
+    }
+
+    @Override
+    protected boolean doDecode(IoSession session, IoBuffer in, ProtocolDecoderOutput out) {
+        int start = in.position();
+        int circuitIdSize = getCircuitIdSize(session);
+        int payloadPos = circuitIdSize + Cell.CELL_COMMAND_SIZE;
+        if (in.remaining() < payloadPos) {
+            return false;
+        }
+        int command = in.get(start + circuitIdSize) & 0xff;
+        int length = Cell.CELL_PAYLOAD_SIZE;
+        if (Cell.isVariableLength(command)) {
+            if (in.remaining() < payloadPos + Cell.CELL_LENGTH_SIZE) {
+                return false;
+            }
+            length = in.getUnsignedShort(start + payloadPos);
+            payloadPos += Cell.CELL_LENGTH_SIZE;
+        }
+        if (in.remaining() < payloadPos + length) {
+            return false;
+        }
+
+        int circuitId;
+        if (circuitIdSize == Cell.CELL_CIRCID_SIZE_V4) {
+            circuitId = in.getInt(start + Cell.CELL_CIRCID_POS);
+        } else {
+            circuitId = in.getUnsignedShort(start + Cell.CELL_CIRCID_POS);
+        }
+        CellType type = CellType.fromByte((byte) command);
+        in.position(start + payloadPos);
+        if (type == null) {
+            LOG.warn("dropping cell with unknown command " + command + " on circuit " + circuitId);
+            in.skip(length);
+            return true;
+        }
+
+        Cell cell;
+        if (Cell.isVariableLength(command)) {
+            // rare and of arbitrary size, so these are not pooled
+            cell = new Cell(null, circuitId, type, ByteBuffer.allocate(length));
+        } else {
+            cell = pool.acquireForReceive(circuitId, type);
+        }
+        in.get(cell.payload.array(), cell.payload.arrayOffset(), length);
+        if (type == CellType.CELL_VERSIONS) {
+            int version = Cell.negotiateVersion(cell.payload);
+            if (version > 0) {
+                session.setAttribute(LINK_VERSION, version);
+            }
+        }
+        out.write(cell);
+        return true;
+    }
+}
@@ -0,0 +1,44 @@
+/**
+ * OnionCoffee - Anonymous Communication through TOR Network
+ * Copyright (C) 2005-2007 RWTH Aachen University, Informatik IV
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA
+ */
+package net.sf.onioncoffee;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.codec.ProtocolEncoderAdapter;
+import org.apache.mina.filter.codec.ProtocolEncoderOutput;
+
+/**
+ * encodes single cells that are written to the session. Batches of cells that
+ * are already encoded by the CellBatcher pass the codec filter untouched.
+ *
+ * The cell is encoded in the writing thread, so the writer must make sure that
+ * relay cells of a circuit are written in the order they are to be encrypted.
+ *
+ * @version unstable
+ */
+public class CellEncoder extends ProtocolEncoderAdapter {
+
+    public void encode(IoSession session, Object message, ProtocolEncoderOutput out) {
+        Cell cell = (Cell) message;
+        int circuitIdSize = CellDecoder.getCircuitIdSize(session);
+        IoBuffer buffer = IoBuffer.allocate(cell.getEncodedSize(circuitIdSize));
+        cell.encodeTo(buffer.buf(), circuitIdSize);
+        buffer.flip();
+        out.write(buffer);
+    }
+}
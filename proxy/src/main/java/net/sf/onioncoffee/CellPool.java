@@ -0,0 +1,151 @@
+/**
+ * OnionCoffee - Anonymous Communication through TOR Network
+ * Copyright (C) 2005-2007 RWTH Aachen University, Informatik IV
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA
+ */
+package net.sf.onioncoffee;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import net.sf.onioncoffee.Cell.CellType;
+import net.sf.onioncoffee.CellRelay.RelayType;
+
+/**
+ * a bounded pool of recyclable cells, there is one per connection. Cells are
+ * taken with acquire() and are handed back with Cell.release() by whoever
+ * consumes them last. If the pool runs dry new cells are created, if it is full
+ * released cells are left to the garbage collector.
+ *
+ * In debug mode released cells are poisoned and never handed out again, so
+ * that any later use of them fails with an IllegalStateException instead of
+ * silently reading another cell's data.
+ *
+ * @version unstable
+ */
+public class CellPool {
+    private static final byte POISON = (byte) 0xdb;
+
+    private final Cell[] cells;
+    private final CellRelay[] relayCells;
+    private int cellCount = 0;
+    private int relayCellCount = 0;
+    private final boolean debug;
+
+    public CellPool() {
+        this(Config.cellPoolSize, Config.cellPoolDebug);
+    }
+
+    public CellPool(int size, boolean debug) {
+        this.cells = new Cell[size];
+        this.relayCells = new CellRelay[size];
+        this.debug = debug;
+    }
+
+    public Cell acquire(Circuit circuit, CellType command) {
+        return acquire(circuit, circuit.getId(), command, null);
+    }
+
+    public CellRelay acquireRelay(Circuit circuit, RelayType relayCommand) {
+        CellRelay retVal = acquireRelay(circuit, circuit.getId(), null);
+        retVal.relayCommand = relayCommand;
+        return retVal;
+    }
+
+    public CellRelay acquireRelay(TCPStream stream, RelayType relayCommand) {
+        CellRelay retVal = acquireRelay(stream.circ, relayCommand);
+        retVal.s = stream;
+        retVal.setStreamID(stream.ID);
+        return retVal;
+    }
+
+    /**
+     * a cell with the circuit not yet known and the uncleared payload, for the
+     * receiving side which is going to overwrite the whole payload anyway
+     */
+    Cell acquireForReceive(int circuitId, CellType command) {
+        Cell retVal = (command == CellType.CELL_RELAY) ? popRelayCell() : popCell();
+        retVal.recycle(null, circuitId, command, retVal.ownPayload());
+        return retVal;
+    }
+
+    /**
+     * @param view
+     *            payload to wrap, or null for an empty payload
+     */
+    Cell acquire(Circuit circuit, int circuitId, CellType command, ByteBuffer view) {
+        Cell retVal = popCell();
+        retVal.recycle(circuit, circuitId, command, view);
+        return retVal;
+    }
+
+    CellRelay acquireRelay(Circuit circuit, int circuitId, ByteBuffer view) {
+        CellRelay retVal = popRelayCell();
+        retVal.recycle(circuit, circuitId, CellType.CELL_RELAY, view);
+        return retVal;
+    }
+
+    private Cell popCell() {
+        Cell retVal = null;
+        synchronized (this) {
+            if (cellCount > 0) {
+                retVal = cells[--cellCount];
+                cells[cellCount] = null;
+            }
+        }
+        if (retVal == null) {
+            retVal = new Cell(null, 0, CellType.CELL_PADDING);
+            retVal.pool = this;
+        }
+        return retVal;
+    }
+
+    private CellRelay popRelayCell() {
+        CellRelay retVal = null;
+        synchronized (this) {
+            if (relayCellCount > 0) {
+                retVal = relayCells[--relayCellCount];
+                relayCells[relayCellCount] = null;
+            }
+        }
+        if (retVal == null) {
+            retVal = new CellRelay();
+            retVal.pool = this;
+        }
+        return retVal;
+    }
+
+    void release(Cell cell) {
+        synchronized (this) {
+            if (cell.released) {
+                throw new IllegalStateException("cell " + cell.command + " on circuit " + cell.circuitId + " released twice");
+            }
+            cell.released = true;
+            if (!debug) {
+                if (cell instanceof CellRelay) {
+                    if (relayCellCount < relayCells.length) {
+                        relayCells[relayCellCount++] = (CellRelay) cell;
+                    }
+                } else if (cellCount < cells.length) {
+                    cells[cellCount++] = cell;
+                }
+                return;
+            }
+        }
+        // debug: make sure stale references find garbage, and never reuse the cell
+        ByteBuffer payload = cell.payload;
+        Arrays.fill(payload.array(), payload.arrayOffset(), payload.arrayOffset() + payload.limit(), POISON);
+    }
+}
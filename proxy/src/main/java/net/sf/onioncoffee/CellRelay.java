@@ -18,10 +18,11 @@
 package net.sf.onioncoffee;
 
 import java.io.IOException;
-import java.util.Arrays;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
-import net.sf.onioncoffee.common.Encoding;
 
+import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 /**
@@ -35,17 +36,18 @@ import org.apache.commons.logging.LogFactory;
  */
 
 public class CellRelay extends Cell {
+    private static final Log LOG = LogFactory.getLog(CellRelay.class);
     public RelayType relayCommand;
     private int streamID = 0; 
     public int dataLength = 0; 
-    public byte[] data = new byte[498];
-    private byte[] digest = new byte[4];
 
     /**
      * set to a value from 0 to outCircuit.route_established-1 to address a
      * special router in the chain, default is the last one
      */
     private int addressedRouterInCircuit = -1;
+    /* set once the payload carries the digest and is encrypted */
+    private boolean sealed = false;
 
 
     TCPStream s;
@@ -64,6 +66,8 @@ public class CellRelay extends Cell {
         RELAY_RESOLVE((byte)11, "resolve"),
         RELAY_RESOLVED((byte)12, "resolved"),
         RELAY_BEGIN_DIR((byte)13, "begin dir"),
+        RELAY_EXTEND2((byte)14, "extend2"),
+        RELAY_EXTENDED2((byte)15, "extended2"),
         RELAY_ESTABLISH_INTRO((byte)32, null),
         RELAY_ESTABLISH_RENDEZVOUS((byte)33, null),
         RELAY_INTRODUCE1((byte)34, null),
@@ -134,7 +138,7 @@ public class CellRelay extends Cell {
         int cellIndex =0;
         while (length != 0) {
             int curCellSize = Math.min(length, RELAY_DATA_SIZE);
-            CellRelay cell = retVal[cellIndex] = new CellRelay(c, RelayType.RELAY_DATA);
+            CellRelay cell = retVal[cellIndex] = c.circ.getCellPool().acquireRelay(c, RelayType.RELAY_DATA);
             cell.appendData(buffer, offset, curCellSize);
             ++cellIndex;
             length -= curCellSize;
@@ -144,6 +148,11 @@ public class CellRelay extends Cell {
     }
 
 
+    /** an empty cell for the pool */
+    CellRelay() {
+        super(null, 0, CellType.CELL_RELAY);
+    }
+
     protected CellRelay(Circuit c, RelayType relay_command) {
         super(c, CellType.CELL_RELAY);
         this.relayCommand = relay_command;
@@ -156,17 +165,49 @@ public class CellRelay extends Cell {
         this.setStreamID(s.ID);
     }
 
-    public CellRelay(Circuit circuit, int circuitId, byte[] payload) throws IOException {
+    /**
+     * wraps an already decrypted payload. The relay header is decoded in
+     * place, the data stays in the payload buffer until it's consumed.
+     */
+    public CellRelay(Circuit circuit, int circuitId, ByteBuffer payload) throws IOException {
         super(circuit, circuitId, CellType.CELL_RELAY, payload);
-        getLog().trace("init_from_data() for " + getCircuit().route_established + " layers");
-        setStreamID(Encoding.byteArrayToInt(payload, RELAY_STREAMID_POS, RELAY_STREAMID_SIZE));
-        dataLength = Encoding.byteArrayToInt(payload, RELAY_LENGTH_POS, RELAY_LENGTH_SIZE);
-        System.arraycopy(payload, RELAY_DATA_POS, this.data, 0, RELAY_DATA_SIZE);
-        relayCommand = RelayType.fromByte(payload[RELAY_COMMAND_POS]);
+        decodeHeader();
     }
     
     public CellRelay(Circuit circuit, byte[] payload) throws IOException {
-        this(circuit, circuit.getId(), payload);
+        this(circuit, circuit.getId(), ByteBuffer.wrap(payload.clone()));
+    }
+
+    @Override
+    void recycle(Circuit outCircuit, int circuitId, CellType command, ByteBuffer view) {
+        super.recycle(outCircuit, circuitId, command, view);
+        relayCommand = null;
+        streamID = 0;
+        dataLength = 0;
+        addressedRouterInCircuit = -1;
+        sealed = false;
+        s = null;
+    }
+
+    /**
+     * removes the onion skins of a received cell and reads its relay header.
+     * The circuit of the cell must be set.
+     */
+    void decrypt() throws IOException {
+        decryptPayload(payload, getCircuit());
+        decodeHeader();
+    }
+
+    /**
+     * reads the relay header of a received and decrypted payload
+     */
+    void decodeHeader() throws IOException {
+        setStreamID(((payload.get(RELAY_STREAMID_POS) & 0xff) << 8) | (payload.get(RELAY_STREAMID_POS + 1) & 0xff));
+        dataLength = ((payload.get(RELAY_LENGTH_POS) & 0xff) << 8) | (payload.get(RELAY_LENGTH_POS + 1) & 0xff);
+        if (dataLength > RELAY_DATA_SIZE) {
+            throw new IOException("relay cell with invalid length " + dataLength);
+        }
+        relayCommand = RelayType.fromByte(payload.get(RELAY_COMMAND_POS));
     }
 
 
@@ -182,33 +223,38 @@ public class CellRelay extends Cell {
         return false;
     }
 
+    /**
+     * sends the cell as RELAY_EARLY, relays only accept EXTEND and EXTEND2 in
+     * those
+     */
+    void setEarly() {
+        command = CellType.CELL_RELAY_EARLY;
+    }
+
     /**
      * prepares the meta-data, such that the cell can be transmitted. encrypts
-     * an onion.
-     * 
-     * FIXME not idempotent
-     * 
-     * @return the data ready for sending
+     * an onion in place. This happens only once, the encrypted payload is kept
+     * for subsequent encodings of the cell.
      */
     @Override
-    public
-    byte[] toByteArray() {
-        getLog().trace("toByteArray() for " + getCircuit().route_established + " layers");
-        // put everything in payload
-        payload[RELAY_COMMAND_POS] = relayCommand.value;
-        System.arraycopy(Encoding.intToNByteArray(getStreamID(), RELAY_STREAMID_SIZE), 0, payload, RELAY_STREAMID_POS, RELAY_STREAMID_SIZE);
-        System.arraycopy(Encoding.intToNByteArray(dataLength, RELAY_LENGTH_SIZE), 0, payload, RELAY_LENGTH_POS, RELAY_LENGTH_SIZE);
-        System.arraycopy(data, 0, payload, RELAY_DATA_POS, RELAY_DATA_SIZE);
+    protected void seal() {
+        if (sealed) {
+            return;
+        }
+        // put the header in the payload, the data is already in place
+        byte[] buffer = payload.array();
+        payload.put(RELAY_COMMAND_POS, relayCommand.value);
+        payload.putShort(RELAY_STREAMID_POS, (short) getStreamID());
+        payload.putShort(RELAY_LENGTH_POS, (short) dataLength);
         // calc digest and insert it
         int i0 = addressedRouterInCircuit >= 0 ? addressedRouterInCircuit : getCircuit().route_established - 1;
-        digest = getCircuit().route[i0].calcForwardDigest(payload);
-        System.arraycopy(digest, 0, payload, RELAY_DIGEST_POS, RELAY_DIGEST_SIZE);
+        payload.putInt(RELAY_DIGEST_POS, getCircuit().route[i0].calcForwardDigestPrefix(buffer, payload.arrayOffset(), RELAY_TOTAL_SIZE));
         // encrypt backwards, take keys from route
+        payload.clear();
         for (int i = i0; i >= 0; --i) {
             getCircuit().route[i].encrypt(payload);
         }
-        // create the byte array to be send over TLS
-        return super.toByteArray();
+        sealed = true;
     }
 
 
@@ -223,14 +269,45 @@ public class CellRelay extends Cell {
     }
 
     public void appendData(byte[] data, int offset, int length) {
-        System.arraycopy(data, offset, this.data, this.dataLength, length);
+        checkReleased();
+        if (sealed) {
+            throw new IllegalStateException("relay cell is already encrypted");
+        }
+        if (this.dataLength + length > RELAY_DATA_SIZE) {
+            throw new IllegalArgumentException("relay cell can't hold more than " + RELAY_DATA_SIZE + " bytes");
+        }
+        System.arraycopy(data, offset, payload.array(), payload.arrayOffset() + RELAY_DATA_POS + this.dataLength, length);
         this.dataLength += length;
     }
 
+    /**
+     * @return a read only view of the data of this cell, nothing is copied
+     */
+    public ByteBuffer getData() {
+        checkReleased();
+        ByteBuffer retVal = payload.asReadOnlyBuffer();
+        retVal.limit(RELAY_DATA_POS + dataLength);
+        retVal.position(RELAY_DATA_POS);
+        return retVal.slice();
+    }
+
+    public byte getDataByte(int index) {
+        checkReleased();
+        return payload.get(RELAY_DATA_POS + index);
+    }
+
+    /**
+     * writes the data of this cell straight from the payload buffer
+     */
+    public void writeData(OutputStream out) throws IOException {
+        checkReleased();
+        out.write(payload.array(), payload.arrayOffset() + RELAY_DATA_POS, dataLength);
+    }
     
     public byte[] extractData(int offset, int length) {
+        checkReleased();
         byte[] retVal = new byte[length];
-        System.arraycopy(data, offset, retVal, 0, length);
+        System.arraycopy(payload.array(), payload.arrayOffset() + RELAY_DATA_POS + offset, retVal, 0, length);
         return retVal;
     }
 
@@ -252,18 +329,28 @@ public class CellRelay extends Cell {
         return streamID;
     }
     
-    private static byte[] ZERO_DIGEST = { 0, 0, 0, 0 };
-    
     public static void decryptPayload(byte[] payload, Circuit circuit) throws IOException {
+        decryptPayload(ByteBuffer.wrap(payload), circuit);
+    }
+
+    /**
+     * decrypts the payload in place, layer by layer until the cell is
+     * recognized. The buffer has to be array backed and hold exactly the
+     * payload of the cell.
+     */
+    public static void decryptPayload(ByteBuffer payloadBuffer, Circuit circuit) throws IOException {
+        byte[] payload = payloadBuffer.array();
+        int offset = payloadBuffer.arrayOffset();
         // decrypt forwards, take keys from route
         int encrypting_router;
         boolean digest_verified = false;
-        byte[] digest = new byte[RELAY_DIGEST_SIZE];
+        int digest = 0;
 
         if (circuit.route_established == 0) {
-            LogFactory.getLog(CellRelay.class).warn("init_from_data() for zero layers on " + circuit);
+            LOG.warn("init_from_data() for zero layers on " + circuit);
         }
         
+        payloadBuffer.clear();
         for (encrypting_router = 0; encrypting_router <= circuit.route_established; ++encrypting_router) {
             // check if no decryption has lead to a recognized cell
             if (encrypting_router == circuit.route_established) {
@@ -271,18 +358,16 @@ public class CellRelay extends Cell {
             }
             CircuitNode node = circuit.route[encrypting_router];
             // decrypt payload
-            node.decrypt(payload);
+            node.decrypt(payloadBuffer);
             // if recognized and digest is correct, then stop decrypting
-            if ((payload[RELAY_RECOGNIZED_POS] == 0) && (payload[RELAY_RECOGNIZED_POS + 1] == 0)) {
-                // save digest
-                System.arraycopy(payload, RELAY_DIGEST_POS, digest, 0, RELAY_DIGEST_SIZE);
-                System.arraycopy(ZERO_DIGEST, 0, payload, RELAY_DIGEST_POS, 4);
-                byte[] digest_calc = node.calcBackwardDigest(payload); 
-                // restore digest
-                System.arraycopy(digest, 0, payload, RELAY_DIGEST_POS, RELAY_DIGEST_SIZE);
+            if (payloadBuffer.getShort(RELAY_RECOGNIZED_POS) == 0) {
+                // the digest is calculated with the digest field zeroed
+                digest = payloadBuffer.getInt(RELAY_DIGEST_POS);
+                payloadBuffer.putInt(RELAY_DIGEST_POS, 0);
+                int digest_calc = node.calcBackwardDigestPrefix(payload, offset, RELAY_TOTAL_SIZE);
+                payloadBuffer.putInt(RELAY_DIGEST_POS, digest);
                 // check digest
-                if (Arrays.equals(Arrays.copyOf(digest, 4), Arrays.copyOf(digest_calc, 4))) {
-                    LogFactory.getLog(CellRelay.class).trace("init_from_data(): backward digest from " + node.server + " is OK");
+                if (digest == digest_calc) {
                     digest_verified = true;
                     break;
                 }
@@ -290,7 +375,7 @@ public class CellRelay extends Cell {
         }
         // check if digest verified
         if (!digest_verified) {
-            LogFactory.getLog(CellRelay.class).warn("init_from_data(): Received " + Encoding.toHexString(digest) + " as backward digest but couldn't verify");
+            LOG.warn("init_from_data(): Received " + Integer.toHexString(digest) + " as backward digest but couldn't verify");
             throw new IOException("wrong digest");
         }
     }
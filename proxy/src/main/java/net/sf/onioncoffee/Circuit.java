@@ -21,7 +21,6 @@ import java.io.IOException;
 import java.math.BigInteger;
 import java.security.GeneralSecurityException;
 import java.security.PublicKey;
-import java.security.SecureRandom;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -80,6 +79,8 @@ public class Circuit extends CellSink {
     public int stream_counter = 0; // overall number of streams relayed thrue the circ
     public int stream_fails = 0; // overall counter of failures in streams in this circuit
     QueueFlowControlHandler qhFC;
+    // DATA cells we may send before the last hop sends a SENDME
+    final PackageWindow packageWindow = new PackageWindow(CIRCUT_LEVEL_FLOW_CONTROL, CIRCUT_LEVEL_FLOW_CONTROL_INCREMENT);
 
     /**
      * initiates a circuit. tries to rebuild the circuit for a limited number of
@@ -106,35 +107,76 @@ public class Circuit extends CellSink {
         // FIXME: Addition to circuits-list is quite hidden here.
         connection.assignCircuitId(this);
         route = new CircuitNode[init.length];
+        boolean createFast = ((sp != null) ? sp.createFast : Config.createFast) && connection.isAuthenticated();
         // stepwise route creation
         for (int i = 0; i < init.length; ++i) {
             Server s = init[i];
             getLog().debug("Circuit: " + this + " extending to " + s + " (" + s.countryCode + ")");
-            extend(i, s);
+            if (i == 0 && createFast) {
+                createFast(s);
+            } else if (s.ntorOnionKey != null) {
+                extendNtor(i, s);
+            } else {
+                extend(i, s);
+            }
             route_established += 1;
         }
         setupDuration = (int) (System.currentTimeMillis() - getCreated());
         established = true;
         getLog().info("Circuit: " + this + " established within " + setupDuration + " ms");
+        // counted in onCell() for all cells, not only the ones in the queue
         qhFC = new QueueFlowControlHandler(this, CIRCUT_LEVEL_FLOW_CONTROL, CIRCUT_LEVEL_FLOW_CONTROL_INCREMENT);
-        queue.addHandler(qhFC);
     }
 
 
+    /**
+     * wraps an already established route without any network traffic, for
+     * tests and benchmarks.
+     */
+    Circuit(ServerConnection connection, int id, CircuitNode[] route) {
+        this.connection = connection;
+        this.entryServer = route.length > 0 ? route[0].server : null;
+        this.id = id;
+        this.route = route;
+        this.route_established = route.length;
+        this.setupDuration = 0;
+        this.established = true;
+    }
+
+    /**
+     * creates the first hop with a CREATE_FAST cell. The keys are derived
+     * from random bytes of both sides without RSA or Diffie-Hellman, so this
+     * is only used on a connection whose CERTS cell proved that the TLS link
+     * ends at the first server. Even then the first hop's keys are only as
+     * secret as the TLS link, which is why it is off by default.
+     * 
+     * @throws TimeoutException
+     */
+    private void createFast(Server server) throws IOException, TorException, TimeoutException {
+        final byte[] x = new byte[CircuitNode.HASH_LEN];
+        DhKeyPool.getInstance().getRandom().nextBytes(x);
+        sendCell(new Cell(this, CellType.CELL_CREATE_FAST, x));
+        // wait for answer
+        Cell created = queue.receiveCell(CellType.CELL_CREATED_FAST);
+        byte[] data = created.extractPayload();
+        created.release();
+        route[0] = CircuitNode.createFast(server, x, data);
+    }
+
     /**
      * Extends the existing circuit one more hop. sends an EXTEND-cell.
      * 
      * @throws TimeoutException
      */
     private void extend(int i, Server server) throws IOException, TorException, TimeoutException {
+        DhKeyPool keyPool = DhKeyPool.getInstance();
         final byte[] symmetricKey = new byte[16];
-        new SecureRandom().nextBytes(symmetricKey);
+        keyPool.getRandom().nextBytes(symmetricKey);
 
-        // Diffie-Hellman: generate our secret
-        // Diffie-Hellman: generate g^x
-        BigInteger dh_private = new BigInteger(CircuitNode.DH_P.bitLength() - 1, new SecureRandom());
-        BigInteger dh_x = CircuitNode.DH_G.modPow(dh_private, CircuitNode.DH_P);
-        byte[] dh_x_bytes = CircuitNode.BigIntegerTo128Bytes(dh_x);
+        // Diffie-Hellman: our secret and g^x, usually precomputed
+        DhKeyPool.DhKey dhKey = keyPool.take();
+        BigInteger dh_private = dhKey.x;
+        byte[] dh_x_bytes = dhKey.gx;
 
         // create DH-exchange:
         byte[] onion_raw = new byte[144];
@@ -153,10 +195,12 @@ public class Circuit extends CellSink {
             sendCell(new Cell(this, CellType.CELL_CREATE, onion_skin));
             // wait for answer
             Cell created = queue.receiveCell(CellType.CELL_CREATED);
-            dh_response = created.payload;
+            dh_response = created.extractPayload();
+            created.release();
         } else {
             // send extend cell
             CellRelay cell = new CellRelay(this, RelayType.RELAY_EXTEND);
+            cell.setEarly();
             cell.appendData(server.getAddress().getAddress());
             cell.appendData(Encoding.intToNByteArray(server.getRouterPort(), 2));
             cell.appendData(onion_skin);
@@ -164,12 +208,63 @@ public class Circuit extends CellSink {
             sendCell(cell);
             // wait for extended-cell
             CellRelay relay = queue.receiveRelayCell(RelayType.RELAY_EXTENDED);
-            dh_response = relay.data;
+            dh_response = relay.extractData();
+            relay.release();
         }
         // finish DH-exchange
         route[i] = new CircuitNode(server, dh_response, dh_private);
     }
 
+    /**
+     * extends the circuit with the ntor handshake, in a CREATE2 cell for the
+     * first hop and in an EXTEND2 cell otherwise. Used for all servers with an
+     * ntor onion key.
+     * 
+     * @throws TimeoutException
+     */
+    private void extendNtor(int i, Server server) throws IOException, TorException, TimeoutException {
+        NtorHandshake handshake = new NtorHandshake(server.getFingerprintBytes(), server.ntorOnionKey, DhKeyPool.getInstance().getRandom());
+        byte[] onion_skin = handshake.getOnionSkin();
+
+        byte[] response;
+        if (i == 0) {
+            // send create2 cell
+            byte[] payload = new byte[4 + onion_skin.length];
+            System.arraycopy(Encoding.intToNByteArray(NtorHandshake.HTYPE, 2), 0, payload, 0, 2);
+            System.arraycopy(Encoding.intToNByteArray(onion_skin.length, 2), 0, payload, 2, 2);
+            System.arraycopy(onion_skin, 0, payload, 4, onion_skin.length);
+            sendCell(new Cell(this, CellType.CELL_CREATE2, payload));
+            // wait for answer
+            Cell created = queue.receiveCell(CellType.CELL_CREATED2);
+            response = created.extractPayload();
+            created.release();
+        } else {
+            // send extend2 cell
+            CellRelay cell = new CellRelay(this, RelayType.RELAY_EXTEND2);
+            cell.setEarly();
+            // two link specifiers: IPv4 address and port, identity
+            cell.appendData(new byte[] { 2, 0, 6 });
+            cell.appendData(server.getAddress().getAddress());
+            cell.appendData(Encoding.intToNByteArray(server.getRouterPort(), 2));
+            cell.appendData(new byte[] { 2, 20 });
+            cell.appendData(server.getFingerprintBytes());
+            cell.appendData(Encoding.intToNByteArray(NtorHandshake.HTYPE, 2));
+            cell.appendData(Encoding.intToNByteArray(onion_skin.length, 2));
+            cell.appendData(onion_skin);
+            sendCell(cell);
+            // wait for extended2-cell
+            CellRelay relay = queue.receiveRelayCell(RelayType.RELAY_EXTENDED2);
+            response = relay.extractData();
+            relay.release();
+        }
+        // HLEN, then Y and AUTH
+        int length = ((response[0] & 0xff) << 8) | (response[1] & 0xff);
+        if (length != NtorHandshake.REPLY_LENGTH || response.length < 2 + length) {
+            throw new TorException("ntor reply with invalid length " + length);
+        }
+        route[i] = new CircuitNode(server, handshake.finish(response, 2), 0);
+    }
+
     /** creates and send a padding-cell down the circuit */
     public void sendKeepAlive() {
         try {
@@ -333,6 +428,7 @@ public class Circuit extends CellSink {
         }
         // close circuit (also removes handlers)
         queue.close();
+        packageWindow.close();
         // tls.circuits.remove(new Integer(id));
         destruct = true;
         // closed
@@ -438,6 +534,11 @@ public class Circuit extends CellSink {
         return id;
     }
 
+    /** the pool of the connection this circuit runs on */
+    CellPool getCellPool() {
+        return connection.cellPool;
+    }
+
     @Override
     protected void doSendCell(Cell c) throws IOException {
         connection.sendCell(c);
@@ -467,6 +568,17 @@ public class Circuit extends CellSink {
         }
     }
 
+    private void receivedSendme(CellRelay sendme) {
+        if (sendme.getStreamID() == 0) {
+            packageWindow.replenish();
+        } else {
+            TCPStream stream = streams.get(sendme.getStreamID());
+            if (stream != null) {
+                stream.packageWindow.replenish();
+            }
+        }
+    }
+
     public void onCell(Cell cell) {
         // dispatch according to circID
         if (qhFC != null) {
@@ -476,15 +588,23 @@ public class Circuit extends CellSink {
         switch (cell.command) {
             case CELL_DESTROY:
                 close(true);
+                cell.release();
                 break;
 
             case CELL_RELAY:
+                if (((CellRelay) cell).relayCommand == RelayType.RELAY_SENDME) {
+                    // opens a package window, for the stream or for the circuit
+                    receivedSendme((CellRelay) cell);
+                    cell.release();
+                    break;
+                }
                 if (((CellRelay) cell).getStreamID() != 0) {
                     CellRelay relay = ((CellRelay) cell);
                     if (streams.containsKey(new Integer(relay.getStreamID()))) {
-                        getLog().trace("TLSDispatcher.run: data from " + this.entryServer.getName() + " dispatched to circuit " + getId() + "/stream " + relay.getStreamID());
                         TCPStream stream = streams.get(new Integer(relay.getStreamID()));
                         stream.queue.add(relay);
+                    } else {
+                        relay.release();
                     }
                     break;
                 } 
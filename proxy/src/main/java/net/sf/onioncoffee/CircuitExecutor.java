@@ -0,0 +1,73 @@
+/**
+ * OnionCoffee - Anonymous Communication through TOR Network
+ * Copyright (C) 2005-2007 RWTH Aachen University, Informatik IV
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA
+ */
+package net.sf.onioncoffee;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * runs the decryption and dispatching of received cells on a fixed set of
+ * single threaded shards. All cells of a circuit are handled by the same
+ * shard, in the order they were handed in, while different circuits, even on
+ * the same connection, are processed in parallel.
+ *
+ * @version unstable
+ */
+public class CircuitExecutor {
+    private final ExecutorService[] shards;
+
+    public CircuitExecutor() {
+        this(Config.cellThreads > 0 ? Config.cellThreads : Runtime.getRuntime().availableProcessors());
+    }
+
+    public CircuitExecutor(int threads) {
+        shards = new ExecutorService[Math.max(1, threads)];
+        for (int i = 0; i < shards.length; ++i) {
+            shards[i] = Executors.newSingleThreadExecutor();
+        }
+    }
+
+    /**
+     * @param connection
+     *            the id of the connection
+     * @param circuitId
+     *            the id of the circuit on that connection
+     */
+    public void execute(int connection, int circuitId, Runnable task) {
+        shards[shard(connection, circuitId)].execute(task);
+    }
+
+    /**
+     * spreads circuits evenly, even though ids are handed out in sequence
+     */
+    int shard(int connection, int circuitId) {
+        int h = (circuitId + connection * 31) * 0x9e3779b9;
+        h ^= h >>> 16;
+        return (h & 0x7fffffff) % shards.length;
+    }
+
+    public int getThreads() {
+        return shards.length;
+    }
+
+    public void shutdown() {
+        for (ExecutorService shard : shards) {
+            shard.shutdown();
+        }
+    }
+}
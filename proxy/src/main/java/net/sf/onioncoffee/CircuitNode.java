@@ -18,12 +18,15 @@
 package net.sf.onioncoffee;
 
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.util.Arrays;
 
 import net.sf.onioncoffee.common.AESCounterMode;
+import net.sf.onioncoffee.common.CryptoContext;
 import net.sf.onioncoffee.common.Encryption;
+import net.sf.onioncoffee.common.RunningSha1;
 import net.sf.onioncoffee.common.TorException;
 
 import org.slf4j.Logger;
@@ -38,6 +41,7 @@ import org.slf4j.LoggerFactory;
  * @author Tobias Koelsch
  */
 public class CircuitNode  {
+    private static final Logger LOG = LoggerFactory.getLogger(CircuitNode.class);
     // The SKIP 1024 bit modulus
     static final BigInteger DH_P = new BigInteger("00FFFFFFFFFFFFFFFFC90FDAA22168C234C4C6628B80DC1CD129024E08" + //
             "8A67CC74020BBEA63B139B22514A08798E3404DDEF9519B3CD3A431B" + //
@@ -48,11 +52,14 @@ public class CircuitNode  {
     // The base used with the SKIP 1024 bit modulus
     static final BigInteger DH_G = new BigInteger("2");
 
+    // length of the key material exchanged with CREATE_FAST and of KH
+    static final int HASH_LEN = 20;
+
     Server server;
     private final AESCounterMode encryptStreamCipher;
     private final AESCounterMode decryptStreamCipher;
-    private final MessageDigest forwardDigest;
-    private final MessageDigest backwardDigest;
+    private final RunningSha1 forwardDigest;
+    private final RunningSha1 backwardDigest;
 
     /**
      * constructor for client-side
@@ -72,8 +79,47 @@ public class CircuitNode  {
      * 
      */
     CircuitNode(Server init, byte[] data, BigInteger dh_private) throws TorException {
+        this(init, deriveKeys(data, dh_private), HASH_LEN);
+    }
+
+    /**
+     * sets up the node from already derived key material. Expects at offset
+     * the forward digest seed (20 bytes), the backward digest seed (20 bytes),
+     * the forward key (16 bytes) and the backward key (16 bytes).
+     */
+    CircuitNode(Server init, byte[] k, int offset) {
         // save a pointer to the server's data
         this.server = init;
+        forwardDigest = new RunningSha1(k, offset, 20);
+        backwardDigest = new RunningSha1(k, offset + 20, 20);
+        // secret key for sending data
+        encryptStreamCipher = new AESCounterMode(true, Arrays.copyOfRange(k, offset + 40, offset + 56));
+        // secret key for receiving data
+        decryptStreamCipher = new AESCounterMode(true, Arrays.copyOfRange(k, offset + 56, offset + 72));
+    }
+
+    /**
+     * constructor for client-side, after a CREATED_FAST cell
+     * 
+     * @param x
+     *            the 20 random bytes sent in the CREATE_FAST cell
+     * @param data
+     *            the payload of the CREATED_FAST cell: the server's 20 random
+     *            bytes (Y) and the derived key data (KH)
+     * @throws TorException
+     *             if KH doesn't match
+     */
+    static CircuitNode createFast(Server init, byte[] x, byte[] data) throws TorException {
+        byte[] k0 = new byte[2 * HASH_LEN];
+        System.arraycopy(x, 0, k0, 0, HASH_LEN);
+        System.arraycopy(data, 0, k0, HASH_LEN, HASH_LEN);
+        return new CircuitNode(init, checkKeys(deriveKeys(k0), data, HASH_LEN), HASH_LEN);
+    }
+
+    /**
+     * finishes the DH-key exchange and derives the key material
+     */
+    private static byte[] deriveKeys(byte[] data, BigInteger dh_private) throws TorException {
         // calculate g^xy
         // - fix some undocument stuff: all numbers are 128-bytes only!
         // - add a leading zero to all numbers
@@ -81,52 +127,47 @@ public class CircuitNode  {
         System.arraycopy(data, 0, dh_y_bytes, 0, 128);
         BigInteger dh_y = new BigInteger(1, dh_y_bytes);
         BigInteger dh_xy = dh_y.modPow(dh_private, DH_P);
-        final byte[] dh_xy_bytes = BigIntegerTo128Bytes(dh_xy);
+        return checkKeys(deriveKeys(BigIntegerTo128Bytes(dh_xy)), data, 128);
+    }
 
-        // derive key material
+    /**
+     * the key derivation of tor (KDF-TOR, see chapter 5.2 of torspec):
+     * SHA1(K0 | [00]) | SHA1(K0 | [01]) | ... , 100 bytes, enough for KH,
+     * both digest seeds and both keys
+     */
+    static byte[] deriveKeys(byte[] k0) {
         try {
-            byte[] k = new byte[100];
-            byte[] sha1_input = new byte[dh_xy_bytes.length + 1];
-            System.arraycopy(dh_xy_bytes, 0, sha1_input, 0, dh_xy_bytes.length);
+            byte[] k = new byte[5 * HASH_LEN];
+            byte[] sha1_input = new byte[k0.length + 1];
+            System.arraycopy(k0, 0, sha1_input, 0, k0.length);
 
-            MessageDigest sha1 = MessageDigest.getInstance(Encryption.HASH_ALGORITHM);
+            MessageDigest sha1 = CryptoContext.get().getMessageDigest(Encryption.HASH_ALGORITHM);
             for (int i = 0; i < 5; ++i) {
                 sha1.reset();
                 sha1_input[sha1_input.length - 1] = (byte) i;
                 sha1.update(sha1_input);
-                sha1.digest(k, i * 20, 20);
+                sha1.digest(k, i * HASH_LEN, HASH_LEN);
             }
+            return k;
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
 
-            // check if derived key data is equal to bytes 128-147 of data[]
-            // is there some error in the key data?
-            if (!Arrays.equals(Arrays.copyOfRange(k, 0, 20), Arrays.copyOfRange(data, 128, 128 + 20))) {
+    /**
+     * checks the derived KH against the one the server sent
+     */
+    private static byte[] checkKeys(byte[] k, byte[] data, int offset) throws TorException {
+        for (int i = 0; i < HASH_LEN; ++i) {
+            if (k[i] != data[offset + i]) {
                 throw new TorException("derived key material is wrong!");
             }
-
-            final byte[] kh = new byte[20]; // the derived key data
-            final byte[] kf = new byte[16]; // symmetric key for sending data
-            final byte[] kb = new byte[16]; // symmetric key for receiving data
-
-            // derived key info is correct - save to final destination handshake
-            System.arraycopy(k, 0, kh, 0, 20);
-            // secret key for sending data
-            System.arraycopy(k, 60, kf, 0, 16);
-            // secret key for receiving data
-            System.arraycopy(k, 76, kb, 0, 16);
-
-            forwardDigest = MessageDigest.getInstance(Encryption.HASH_ALGORITHM);
-            forwardDigest.update(k, 20, 20);
-            backwardDigest = MessageDigest.getInstance(Encryption.HASH_ALGORITHM);
-            backwardDigest.update(k, 40, 20);
-            decryptStreamCipher = new AESCounterMode(true, kb);
-            encryptStreamCipher = new AESCounterMode(true, kf);
-        } catch (GeneralSecurityException e) {
-            throw new RuntimeException(e);
         }
+        return k;
     }
 
     protected Logger getLog() {
-        return LoggerFactory.getLogger(getClass());
+        return LOG;
     }
 
     /**
@@ -136,13 +177,21 @@ public class CircuitNode  {
      * @return a four-byte array containing the digest
      */
     public byte[] calcForwardDigest(byte[] data) {
-        try {
-            forwardDigest.update(data, 0, data.length);
-            byte[] digest = ((MessageDigest) forwardDigest.clone()).digest();
-            return Arrays.copyOfRange(digest, 0, 4);
-        } catch (CloneNotSupportedException e) {
-            throw new RuntimeException(e);
-        }
+        return calcForwardDigest(data, 0, data.length);
+    }
+
+    public byte[] calcForwardDigest(byte[] data, int offset, int length) {
+        return toBytes(calcForwardDigestPrefix(data, offset, length));
+    }
+
+    /**
+     * adds the data to the running forward digest
+     * 
+     * @return the first four bytes of the digest so far, big endian
+     */
+    public int calcForwardDigestPrefix(byte[] data, int offset, int length) {
+        forwardDigest.update(data, offset, length);
+        return forwardDigest.getDigestPrefix();
     }
 
     /**
@@ -152,13 +201,25 @@ public class CircuitNode  {
      * @return a four-byte array containing the digest
      */
     public byte[] calcBackwardDigest(byte[] data) {
-        try {
-            backwardDigest.update(data, 0, data.length);
-            byte[] digest = ((MessageDigest) backwardDigest.clone()).digest();
-            return Arrays.copyOfRange(digest, 0, 4);
-        } catch (CloneNotSupportedException e) {
-            throw new RuntimeException(e);
-        }
+        return calcBackwardDigest(data, 0, data.length);
+    }
+
+    public byte[] calcBackwardDigest(byte[] data, int offset, int length) {
+        return toBytes(calcBackwardDigestPrefix(data, offset, length));
+    }
+
+    /**
+     * adds the data to the running backward digest
+     * 
+     * @return the first four bytes of the digest so far, big endian
+     */
+    public int calcBackwardDigestPrefix(byte[] data, int offset, int length) {
+        backwardDigest.update(data, offset, length);
+        return backwardDigest.getDigestPrefix();
+    }
+
+    private static byte[] toBytes(int digest) {
+        return new byte[] { (byte) (digest >>> 24), (byte) (digest >>> 16), (byte) (digest >>> 8), (byte) digest };
     }
 
     /**
@@ -168,10 +229,22 @@ public class CircuitNode  {
      *            is used for input and output.
      */
     public void encrypt(byte[] data) {
-        // encrypt data
-        byte[] encrypted = encryptStreamCipher.processStream(data);
-        // copy to output
-        System.arraycopy(encrypted, 0, data, 0, Math.min(data.length, encrypted.length));
+        encrypt(data, 0, data.length);
+    }
+
+    /**
+     * encrypt a region of data in place
+     */
+    public void encrypt(byte[] data, int offset, int length) {
+        encryptStreamCipher.processStream(data, offset, data, offset, length);
+    }
+
+    /**
+     * adds this node's layer to the remaining bytes of the buffer, in place
+     * and without allocating. Position and limit are left as they are.
+     */
+    public void encrypt(ByteBuffer payload) {
+        encryptStreamCipher.processStream(payload);
     }
 
     /**
@@ -181,10 +254,22 @@ public class CircuitNode  {
      *            is used for input and output.
      */
     public void decrypt(byte[] data) {
-        // decrypt data
-        byte[] decrypted = decryptStreamCipher.processStream(data);
-        // copy to output
-        System.arraycopy(decrypted, 0, data, 0, Math.min(data.length, decrypted.length));
+        decrypt(data, 0, data.length);
+    }
+
+    /**
+     * decrypt a region of data in place
+     */
+    public void decrypt(byte[] data, int offset, int length) {
+        decryptStreamCipher.processStream(data, offset, data, offset, length);
+    }
+
+    /**
+     * removes this node's layer from the remaining bytes of the buffer, in
+     * place and without allocating. Position and limit are left as they are.
+     */
+    public void decrypt(ByteBuffer payload) {
+        decryptStreamCipher.processStream(payload);
     }
 
     /**
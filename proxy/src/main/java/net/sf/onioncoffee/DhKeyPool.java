@@ -0,0 +1,150 @@
+/**
+ * OnionCoffee - Anonymous Communication through TOR Network
+ * Copyright (C) 2005-2007 RWTH Aachen University, Informatik IV
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA
+ */
+package net.sf.onioncoffee;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * precomputed Diffie-Hellman key pairs (x, g^x) for extending circuits, so
+ * that the modPow isn't done while a circuit is being built. A background
+ * thread keeps the pool filled to a target that follows the rate at which
+ * circuits are extended: roughly the number of keys taken during the last
+ * REFILL_HORIZON milliseconds, but at least MIN_KEYS and at most the
+ * configured maximum. If the pool is empty, the key is computed right away.
+ *
+ * The pool also hands out the random source used for circuit keys. It's
+ * seeded once and shared, instead of creating a new SecureRandom for every
+ * key.
+ *
+ * @version unstable
+ */
+public class DhKeyPool {
+    private static final int MIN_KEYS = 2;
+    private static final long REFILL_HORIZON = 10 * 1000L;
+
+    private static final DhKeyPool INSTANCE = new DhKeyPool(Config.dhKeyPoolSize);
+
+    /** a private exponent and the matching public value */
+    static class DhKey {
+        final BigInteger x;
+        final byte[] gx;
+
+        DhKey(BigInteger x, byte[] gx) {
+            this.x = x;
+            this.gx = gx;
+        }
+    }
+
+    private final SecureRandom random = new SecureRandom();
+    private final BlockingQueue<DhKey> keys;
+    private final ExecutorService refiller;
+    private final AtomicBoolean refilling = new AtomicBoolean(false);
+    private final Runnable refill = new Runnable() {
+        public void run() {
+            try {
+                while (keys.size() < getTarget() && keys.offer(generate())) {
+                    // keep going
+                }
+            } finally {
+                refilling.set(false);
+            }
+        }
+    };
+
+    /* moving average of the time between two keys taken, in milliseconds */
+    private volatile double takeInterval = REFILL_HORIZON;
+    private long lastTake = System.currentTimeMillis();
+
+    /**
+     * @param size
+     *            maximum number of precomputed keys, 0 to compute every key
+     *            when it's needed
+     */
+    public DhKeyPool(int size) {
+        keys = new ArrayBlockingQueue<DhKey>(Math.max(1, size));
+        if (size > 0) {
+            refiller = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread retVal = new Thread(r, "DhKeyPool");
+                    retVal.setDaemon(true);
+                    retVal.setPriority(Thread.MIN_PRIORITY);
+                    return retVal;
+                }
+            });
+            scheduleRefill();
+        } else {
+            refiller = null;
+        }
+    }
+
+    public static DhKeyPool getInstance() {
+        return INSTANCE;
+    }
+
+    /** the shared random source */
+    public SecureRandom getRandom() {
+        return random;
+    }
+
+    /**
+     * takes a key pair from the pool, or computes one if the pool is empty
+     */
+    DhKey take() {
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            takeInterval = 0.8 * takeInterval + 0.2 * Math.max(1, now - lastTake);
+            lastTake = now;
+        }
+        DhKey retVal = keys.poll();
+        if (retVal == null) {
+            retVal = generate();
+        }
+        scheduleRefill();
+        return retVal;
+    }
+
+    /** the number of keys ready to be taken */
+    int size() {
+        return keys.size();
+    }
+
+    /** the number of keys the pool tries to keep */
+    int getTarget() {
+        int target = (int) (REFILL_HORIZON / takeInterval);
+        return Math.min(keys.remainingCapacity() + keys.size(), Math.max(MIN_KEYS, target));
+    }
+
+    private void scheduleRefill() {
+        if (refiller != null && keys.size() < getTarget() && refilling.compareAndSet(false, true)) {
+            refiller.execute(refill);
+        }
+    }
+
+    DhKey generate() {
+        BigInteger x = new BigInteger(CircuitNode.DH_P.bitLength() - 1, random);
+        BigInteger gx = CircuitNode.DH_G.modPow(x, CircuitNode.DH_P);
+        return new DhKey(x, CircuitNode.BigIntegerTo128Bytes(gx));
+    }
+}
@@ -0,0 +1,154 @@
+/**
+ * OnionCoffee - Anonymous Communication through TOR Network
+ * Copyright (C) 2005-2007 RWTH Aachen University, Informatik IV
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA
+ */
+package net.sf.onioncoffee;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import net.sf.onioncoffee.Cell.CellType;
+import net.sf.onioncoffee.CellRelay.RelayType;
+
+/**
+ * an always-on recorder of cell events that replaces trace logging on the hot
+ * paths. Every event is stored as a few longs in a ring buffer, which costs
+ * one atomic increment and no allocation, so it can run in production. When
+ * something went wrong, dump() prints the last events, oldest first.
+ *
+ * Writers never wait for each other. Each slot carries the sequence number of
+ * its event, which is cleared while the slot is written, so that dump() can
+ * skip events that are overwritten while it reads them.
+ *
+ * @version unstable
+ */
+public class FlightRecorder {
+    public static final byte EVENT_SENT = 1;
+    public static final byte EVENT_RECEIVED = 2;
+    public static final byte EVENT_DROPPED = 3;
+
+    private static final String[] EVENT_NAMES = { "?", "sent", "received", "dropped" };
+    private static final int WORDS = 4; // sequence, time, ids, cell info
+
+    private static final FlightRecorder INSTANCE = new FlightRecorder(Config.flightRecorderSize);
+
+    private final AtomicLongArray ring;
+    private final AtomicLong sequence = new AtomicLong();
+    private final int mask;
+
+    /**
+     * @param size
+     *            number of events kept, rounded up to a power of two, 0
+     *            disables recording
+     */
+    public FlightRecorder(int size) {
+        int capacity = size > 1 ? Integer.highestOneBit(size - 1) << 1 : Math.max(0, size);
+        this.ring = new AtomicLongArray(capacity * WORDS);
+        this.mask = capacity - 1;
+    }
+
+    /** the recorder all connections write to */
+    public static FlightRecorder getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * records an event for the cell. Call before the cell is released.
+     *
+     * @param connection
+     *            the id of the connection the cell belongs to
+     */
+    public void record(byte event, int connection, Cell cell) {
+        if (mask < 0) {
+            return;
+        }
+        int stream = 0;
+        int relayCommand = 0;
+        int length = cell.payload.limit();
+        if (cell instanceof CellRelay) {
+            CellRelay relay = (CellRelay) cell;
+            stream = relay.getStreamID();
+            relayCommand = relay.relayCommand != null ? relay.relayCommand.value : 0;
+            length = relay.dataLength;
+        }
+        int circuitId = cell.getCircuit() != null ? cell.getCircuit().getId() : cell.circuitId;
+        long ids = ((long) connection << 32) | (circuitId & 0xffffffffL);
+        long info = ((long) event << 56) | ((long) (cell.command.value & 0xff) << 48) | ((long) (relayCommand & 0xff) << 40) | ((long) (stream & 0xffff) << 16) | (length & 0xffff);
+
+        long seq = sequence.getAndIncrement();
+        int slot = (int) (seq & mask) * WORDS;
+        ring.set(slot, -1);
+        ring.lazySet(slot + 1, System.nanoTime());
+        ring.lazySet(slot + 2, ids);
+        ring.lazySet(slot + 3, info);
+        ring.set(slot, seq);
+    }
+
+    /**
+     * prints the recorded events, oldest first. Time stamps are in
+     * microseconds relative to the last event.
+     */
+    public void dump(PrintWriter out) {
+        long end = sequence.get();
+        long start = Math.max(0, end - (mask + 1));
+        long now = 0;
+        if (end > 0) {
+            now = ring.get((int) ((end - 1) & mask) * WORDS + 1);
+        }
+        for (long seq = start; seq < end; ++seq) {
+            int slot = (int) (seq & mask) * WORDS;
+            if (ring.get(slot) != seq) {
+                continue;
+            }
+            long time = ring.get(slot + 1);
+            long ids = ring.get(slot + 2);
+            long info = ring.get(slot + 3);
+            if (ring.get(slot) != seq) {
+                // being overwritten by a writer that lapped us
+                continue;
+            }
+            out.println(format(seq, (time - now) / 1000, ids, info));
+        }
+        out.flush();
+    }
+
+    private static String format(long seq, long micros, long ids, long info) {
+        int event = (int) (info >>> 56);
+        CellType command = CellType.fromByte((byte) (info >>> 48));
+        StringBuilder sb = new StringBuilder();
+        sb.append(seq).append(' ').append(micros).append("us ");
+        sb.append(event < EVENT_NAMES.length ? EVENT_NAMES[event] : EVENT_NAMES[0]);
+        sb.append(" conn=").append((int) (ids >>> 32));
+        sb.append(" circ=").append(ids & 0xffffffffL);
+        sb.append(' ').append(command != null ? command.name : "unknown");
+        if (command == CellType.CELL_RELAY || command == CellType.CELL_RELAY_EARLY) {
+            sb.append(' ').append(relayName((byte) (info >>> 40)));
+            sb.append(" stream=").append((info >>> 16) & 0xffff);
+        }
+        sb.append(" len=").append(info & 0xffff);
+        return sb.toString();
+    }
+
+    private static String relayName(byte value) {
+        for (RelayType type : RelayType.values()) {
+            if (type.value == value) {
+                return type.name != null ? type.name : type.toString();
+            }
+        }
+        return "unknown";
+    }
+}
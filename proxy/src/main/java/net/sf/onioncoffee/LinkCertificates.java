@@ -0,0 +1,109 @@
+/**
+ * OnionCoffee - Anonymous Communication through TOR Network
+ * Copyright (C) 2005-2007 RWTH Aachen University, Informatik IV
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA
+ */
+package net.sf.onioncoffee;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+
+import net.sf.onioncoffee.common.Encryption;
+
+/**
+ * checks the CERTS cell a router sends in the in-protocol handshake. The
+ * identity certificate has to carry the key whose digest the directory lists
+ * as the router's fingerprint, and has to sign itself and the link
+ * certificate. The link certificate in turn has to be the one the router
+ * presented in the TLS handshake, which ties the TLS link to the identity.
+ */
+class LinkCertificates {
+    static final int CERT_LINK = 1;
+    static final int CERT_IDENTITY = 2;
+
+    private LinkCertificates() {
+    }
+
+    /**
+     * @param payload
+     *            the payload of the CERTS cell
+     * @param fingerprint
+     *            the digest of the identity key, from the directory
+     * @param tls
+     *            the router's certificate of the TLS handshake
+     * @throws CertificateException
+     *             if the cell doesn't prove that the TLS link ends at the
+     *             router with the fingerprint
+     */
+    static void verify(ByteBuffer payload, byte[] fingerprint, Certificate tls) throws CertificateException {
+        X509Certificate link = null;
+        X509Certificate identity = null;
+        CertificateFactory factory = CertificateFactory.getInstance("X.509");
+        int n = payload.get(0) & 0xff;
+        int pos = 1;
+        for (int i = 0; i < n; ++i) {
+            if (pos + 3 > payload.limit()) {
+                throw new CertificateException("truncated CERTS cell");
+            }
+            int type = payload.get(pos) & 0xff;
+            int length = payload.getShort(pos + 1) & 0xffff;
+            pos += 3;
+            if (pos + length > payload.limit()) {
+                throw new CertificateException("truncated CERTS cell");
+            }
+            // other types aren't X.509 or don't concern a client
+            if (type == CERT_LINK || type == CERT_IDENTITY) {
+                X509Certificate cert = (X509Certificate) factory.generateCertificate(new ByteArrayInputStream(payload.array(), payload.arrayOffset() + pos, length));
+                if ((type == CERT_LINK ? link : identity) != null) {
+                    throw new CertificateException("certificate of type " + type + " sent twice");
+                }
+                if (type == CERT_LINK) {
+                    link = cert;
+                } else {
+                    identity = cert;
+                }
+            }
+            pos += length;
+        }
+        if (link == null || identity == null) {
+            throw new CertificateException("link or identity certificate missing");
+        }
+
+        PublicKey identityKey = identity.getPublicKey();
+        if (!(identityKey instanceof RSAPublicKey)
+                || !Arrays.equals(fingerprint, Encryption.getHash(Encryption.getPKCS1EncodingFromRSAPublicKey((RSAPublicKey) identityKey)))) {
+            throw new CertificateException("identity key doesn't match the fingerprint");
+        }
+        try {
+            identity.verify(identityKey);
+            link.verify(identityKey);
+        } catch (GeneralSecurityException e) {
+            throw new CertificateException("certificates not signed by the identity key", e);
+        }
+        identity.checkValidity();
+        link.checkValidity();
+        if (!link.equals(tls)) {
+            throw new CertificateException("link certificate isn't the one of the TLS handshake");
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/**
+ * OnionCoffee - Anonymous Communication through TOR Network
+ * Copyright (C) 2005-2007 RWTH Aachen University, Informatik IV
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA
+ */
+package net.sf.onioncoffee;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import net.sf.onioncoffee.common.CryptoContext;
+import net.sf.onioncoffee.common.Curve25519;
+import net.sf.onioncoffee.common.TorException;
+
+/**
+ * the ntor handshake (chapter 5.1.4 of torspec), sent in CREATE2 and EXTEND2
+ * cells. Both sides do two Curve25519 operations instead of RSA and a 1024 bit
+ * Diffie-Hellman, and the keys are expanded with HKDF-SHA256 into the same
+ * layout as for TAP: Df, Db, Kf, Kb.
+ *
+ * One object is one handshake of a client. The responder side is here as
+ * well, for tests and benchmarks without a relay.
+ *
+ * @version unstable
+ */
+class NtorHandshake {
+    static final int HTYPE = 2;
+    static final int ONIONSKIN_LENGTH = 84;
+    static final int REPLY_LENGTH = 64;
+    static final int KEY_MATERIAL_LENGTH = 92;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final byte[] PROTOID = "ntor-curve25519-sha256-1".getBytes(ASCII);
+    private static final byte[] T_MAC = "ntor-curve25519-sha256-1:mac".getBytes(ASCII);
+    private static final byte[] T_KEY = "ntor-curve25519-sha256-1:key_extract".getBytes(ASCII);
+    private static final byte[] T_VERIFY = "ntor-curve25519-sha256-1:verify".getBytes(ASCII);
+    private static final byte[] M_EXPAND = "ntor-curve25519-sha256-1:key_expand".getBytes(ASCII);
+    private static final byte[] SERVER = "Server".getBytes(ASCII);
+
+    private static final int ID_LENGTH = 20;
+    private static final int KEY_LENGTH = Curve25519.KEY_LENGTH;
+
+    private final byte[] id;
+    private final byte[] b;
+    private final byte[] x;
+    private final byte[] gx;
+
+    /**
+     * @param id
+     *            the identity fingerprint of the relay
+     * @param ntorOnionKey
+     *            the relay's ntor onion key B
+     */
+    NtorHandshake(byte[] id, byte[] ntorOnionKey, SecureRandom random) {
+        this.id = id;
+        this.b = ntorOnionKey;
+        this.x = Curve25519.generatePrivateKey(random);
+        this.gx = Curve25519.publicKey(x);
+    }
+
+    /**
+     * @return the handshake data for CREATE2 or EXTEND2: ID, B and X
+     */
+    byte[] getOnionSkin() {
+        byte[] retVal = new byte[ONIONSKIN_LENGTH];
+        System.arraycopy(id, 0, retVal, 0, ID_LENGTH);
+        System.arraycopy(b, 0, retVal, ID_LENGTH, KEY_LENGTH);
+        System.arraycopy(gx, 0, retVal, ID_LENGTH + KEY_LENGTH, KEY_LENGTH);
+        return retVal;
+    }
+
+    /**
+     * checks the reply of the relay and derives the key material
+     *
+     * @param reply
+     *            Y and AUTH from CREATED2 or EXTENDED2
+     * @return Df, Db, Kf, Kb and KH
+     * @throws TorException
+     *             if the relay didn't prove it knows the private key to B
+     */
+    byte[] finish(byte[] reply, int offset) throws TorException {
+        byte[] gy = new byte[KEY_LENGTH];
+        System.arraycopy(reply, offset, gy, 0, KEY_LENGTH);
+        byte[] auth = new byte[KEY_LENGTH];
+        System.arraycopy(reply, offset + KEY_LENGTH, auth, 0, KEY_LENGTH);
+
+        byte[] xy = Curve25519.scalarMult(x, gy);
+        byte[] xb = Curve25519.scalarMult(x, b);
+        if (Curve25519.isZero(xy) || Curve25519.isZero(xb)) {
+            throw new TorException("ntor handshake with a key of small order");
+        }
+        byte[] secretInput = concat(xy, xb, id, b, gx, gy, PROTOID);
+        if (!MessageDigest.isEqual(auth, auth(secretInput, gx, gy))) {
+            throw new TorException("ntor handshake failed to authenticate the relay");
+        }
+        return expand(secretInput);
+    }
+
+    /**
+     * the relay's side of the handshake
+     *
+     * @param ntorPrivateKey
+     *            b, the private key to B
+     * @param ntorOnionKey
+     *            B
+     * @param keys
+     *            receives the key material, KEY_MATERIAL_LENGTH bytes
+     * @return Y and AUTH
+     * @throws TorException
+     *             if the onion skin isn't meant for this relay
+     */
+    static byte[] respond(byte[] id, byte[] ntorPrivateKey, byte[] b, byte[] onionSkin, SecureRandom random, byte[] keys) throws TorException {
+        for (int i = 0; i < ID_LENGTH; ++i) {
+            if (onionSkin[i] != id[i]) {
+                throw new TorException("ntor handshake for another relay");
+            }
+        }
+        for (int i = 0; i < KEY_LENGTH; ++i) {
+            if (onionSkin[ID_LENGTH + i] != b[i]) {
+                throw new TorException("ntor handshake for another key");
+            }
+        }
+        byte[] gx = new byte[KEY_LENGTH];
+        System.arraycopy(onionSkin, ID_LENGTH + KEY_LENGTH, gx, 0, KEY_LENGTH);
+        byte[] y = Curve25519.generatePrivateKey(random);
+        byte[] gy = Curve25519.publicKey(y);
+
+        byte[] xy = Curve25519.scalarMult(y, gx);
+        byte[] xb = Curve25519.scalarMult(ntorPrivateKey, gx);
+        if (Curve25519.isZero(xy) || Curve25519.isZero(xb)) {
+            throw new TorException("ntor handshake with a key of small order");
+        }
+        byte[] secretInput = concat(xy, xb, id, b, gx, gy, PROTOID);
+        System.arraycopy(expand(secretInput), 0, keys, 0, KEY_MATERIAL_LENGTH);
+        return concat(gy, auth(secretInput, gx, gy));
+    }
+
+    /**
+     * AUTH = H(verify | ID | B | Y | X | PROTOID | "Server", t_mac), where
+     * verify = H(secret_input, t_verify)
+     */
+    private static byte[] auth(byte[] secretInput, byte[] gx, byte[] gy) {
+        byte[] verify = hmac(T_VERIFY, secretInput);
+        byte[] id = new byte[ID_LENGTH];
+        byte[] b = new byte[KEY_LENGTH];
+        System.arraycopy(secretInput, 2 * KEY_LENGTH, id, 0, ID_LENGTH);
+        System.arraycopy(secretInput, 2 * KEY_LENGTH + ID_LENGTH, b, 0, KEY_LENGTH);
+        return hmac(T_MAC, concat(verify, id, b, gy, gx, PROTOID, SERVER));
+    }
+
+    /**
+     * HKDF-SHA256 (RFC 5869) with salt t_key and info m_expand
+     */
+    private static byte[] expand(byte[] secretInput) {
+        try {
+            byte[] keySeed = hmac(T_KEY, secretInput);
+            Mac mac = CryptoContext.get().getMac("HmacSHA256");
+            mac.init(new SecretKeySpec(keySeed, "HmacSHA256"));
+            byte[] retVal = new byte[KEY_MATERIAL_LENGTH];
+            byte[] block = new byte[0];
+            for (int i = 1, pos = 0; pos < retVal.length; ++i) {
+                mac.update(block);
+                mac.update(M_EXPAND);
+                mac.update((byte) i);
+                block = mac.doFinal();
+                int n = Math.min(block.length, retVal.length - pos);
+                System.arraycopy(block, 0, retVal, pos, n);
+                pos += n;
+            }
+            return retVal;
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static byte[] hmac(byte[] key, byte[] data) {
+        try {
+            Mac mac = CryptoContext.get().getMac("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(data);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        byte[] retVal = new byte[length];
+        int pos = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, retVal, pos, part.length);
+            pos += part.length;
+        }
+        return retVal;
+    }
+}
@@ -0,0 +1,144 @@
+/**
+ * OnionCoffee - Anonymous Communication through TOR Network
+ * Copyright (C) 2005-2007 RWTH Aachen University, Informatik IV
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA
+ */
+package net.sf.onioncoffee;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.LinkedList;
+import java.util.List;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ValueFuture;
+
+/**
+ * the package window of a stream or a circuit: the number of DATA cells that
+ * may still be sent before the other side acknowledges some with a SENDME.
+ * Writers take one cell at a time and block while the window is closed, or
+ * ask for a future that is done when it opens again.
+ *
+ * @version unstable
+ */
+class PackageWindow {
+    private final int increment;
+    private int window;
+    private boolean closed = false;
+    private final List<ValueFuture<Void>> waiting = new LinkedList<ValueFuture<Void>>();
+
+    /**
+     * @param start
+     *            the window of a new stream or circuit
+     * @param increment
+     *            cells acknowledged by a SENDME
+     */
+    PackageWindow(int start, int increment) {
+        this.window = start;
+        this.increment = increment;
+    }
+
+    synchronized int get() {
+        return window;
+    }
+
+    /**
+     * takes one cell of the window, if it is open
+     */
+    synchronized boolean tryTake() {
+        if (window > 0) {
+            --window;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * takes one cell of the window, waiting for it to open
+     *
+     * @throws IOException
+     *             if the stream or circuit was closed in the mean time
+     */
+    synchronized void take() throws IOException {
+        while (window <= 0 && !closed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for a SENDME");
+            }
+        }
+        if (closed) {
+            throw new IOException("closed while waiting for a SENDME");
+        }
+        --window;
+    }
+
+    /**
+     * gives back a cell that was taken but not sent
+     */
+    void giveBack() {
+        add(1);
+    }
+
+    /**
+     * @return done as soon as the window is open, failed if it is closed
+     *         before
+     */
+    synchronized ListenableFuture<Void> whenOpen() {
+        ValueFuture<Void> retVal = ValueFuture.create();
+        if (closed) {
+            retVal.setException(new IOException("closed"));
+        } else if (window > 0) {
+            retVal.set(null);
+        } else {
+            waiting.add(retVal);
+        }
+        return retVal;
+    }
+
+    /** a SENDME was received */
+    void replenish() {
+        add(increment);
+    }
+
+    private void add(int cells) {
+        List<ValueFuture<Void>> open;
+        synchronized (this) {
+            window += cells;
+            notifyAll();
+            open = new LinkedList<ValueFuture<Void>>(waiting);
+            waiting.clear();
+        }
+        // listeners run outside of the lock
+        for (ValueFuture<Void> future : open) {
+            future.set(null);
+        }
+    }
+
+    /** fails all writers that wait */
+    void close() {
+        List<ValueFuture<Void>> failed;
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+            failed = new LinkedList<ValueFuture<Void>>(waiting);
+            waiting.clear();
+        }
+        for (ValueFuture<Void> future : failed) {
+            future.setException(new IOException("closed"));
+        }
+    }
+}
@@ -3,6 +3,7 @@ package net.sf.onioncoffee;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PrintWriter;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
@@ -21,9 +22,14 @@ import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.net.SocketFactory;
 
@@ -44,6 +50,10 @@ import org.apache.mina.core.service.IoProcessor;
 import org.apache.mina.transport.socket.nio.NioProcessor;
 import org.apache.mina.transport.socket.nio.NioSession;
 
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ValueFuture;
+
 public class Proxy extends SocketFactory {
     // general multiplicator for time
     private static final int MILLISEC = 1000;
@@ -55,6 +65,9 @@ public class Proxy extends SocketFactory {
     private static final int MAX_STREAM_IDLE = 30 * 1000;
 
     protected final ExecutorService executor = Executors.newCachedThreadPool();
+    protected final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    // decrypts and dispatches received cells, keeping the order per circuit
+    protected final CircuitExecutor cellExecutor;
     protected Directory directory = new RefreshableDirectory(executor);
     private final Set<String> excludedNodesByConfig = new HashSet<String>();
     private final IoProcessor<NioSession> ioProcessor;
@@ -359,6 +372,7 @@ public class Proxy extends SocketFactory {
     public Proxy() {
         Config.load();
         this.ioProcessor = new NioProcessor(executor);
+        this.cellExecutor = new CircuitExecutor();
     }
 
     protected Log getLog() {
@@ -581,6 +595,14 @@ public class Proxy extends SocketFactory {
         return retVal;
     }
 
+    /**
+     * prints the most recent cell events of all connections, for diagnosing
+     * problems without having to run with trace logging
+     */
+    public void dumpFlightRecorder(PrintWriter out) {
+        FlightRecorder.getInstance().dump(out);
+    }
+
     public void removeDeadCircuts() {
         for (ServerConnection tls : this.getCurrentConnections()) {
             for (Iterator<Map.Entry<Integer, Circuit>> itr = tls.circuits.entrySet().iterator(); itr.hasNext();) {
@@ -778,7 +800,7 @@ public class Proxy extends SocketFactory {
         Circuit retVal = null;
         try {
             if (!connectionMap.containsKey(entryServer.getFingerprint())) {
-                connectionMap.put(entryServer.getFingerprint(), new ServerConnection(route[0], ioProcessor));
+                connectionMap.put(entryServer.getFingerprint(), new ServerConnection(route[0], ioProcessor, scheduler, cellExecutor));
             }
             ServerConnection connection = connectionMap.get(entryServer.getFingerprint());
             retVal = new Circuit(connection, route, tcpStreamProperties);
@@ -877,6 +899,108 @@ public class Proxy extends SocketFactory {
         throw new IOException("Tor.connect: unable to connect to " + sp.hostname + ":" + sp.port + " after " + sp.connect_retries + " retries");
     }
 
+    /**
+     * makes a connection to a remote service without blocking the caller.
+     * Circuits that have to be built for it are built on the executor of the
+     * proxy, the stream is attached to one circuit after the other without
+     * waiting for the exits.
+     * 
+     * @param sp
+     *            hostname, port to connect to and other stuff
+     * @param timeout
+     *            milliseconds until the future fails with a TimeoutException,
+     *            0 to rely on the timeouts of the single attempts
+     * @return the connected stream. Cancelling it ends the stream that is
+     *         being attached.
+     */
+    public ListenableFuture<TCPStream> connectAsync(final TCPStreamProperties sp, final long timeout) {
+        final ValueFuture<TCPStream> retVal = ValueFuture.create();
+        if (sp.hostname == null) {
+            retVal.setException(new IOException("Tor: no hostname is provided"));
+            return retVal;
+        }
+        final AtomicReference<ListenableFuture<TCPStream>> attempt = new AtomicReference<ListenableFuture<TCPStream>>();
+        if (timeout > 0) {
+            final ScheduledFuture<?> deadline = scheduler.schedule(new Runnable() {
+                public void run() {
+                    retVal.setException(new TimeoutException("Tor.connect: no connection to " + sp.hostname + ":" + sp.port + " within " + timeout + " ms"));
+                }
+            }, timeout, TimeUnit.MILLISECONDS);
+            retVal.addListener(new Runnable() {
+                public void run() {
+                    deadline.cancel(false);
+                }
+            }, MoreExecutors.sameThreadExecutor());
+        }
+        // a failed or cancelled connect ends the stream being attached
+        retVal.addListener(new Runnable() {
+            public void run() {
+                ListenableFuture<TCPStream> current = attempt.get();
+                if (current != null) {
+                    current.cancel(false);
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        executor.execute(new Runnable() {
+            public void run() {
+                if (retVal.isDone()) {
+                    return;
+                }
+                try {
+                    attach(provideSuitableCircuits(sp), 0, sp, retVal, attempt);
+                } catch (Exception e) {
+                    // nothing else would ever complete the future
+                    retVal.setException(e);
+                }
+            }
+        });
+        return retVal;
+    }
+
+    /**
+     * attaches a stream to the i-th circuit, and to the next one if that
+     * fails
+     */
+    private void attach(final Circuit[] cs, final int i, final TCPStreamProperties sp, final ValueFuture<TCPStream> result,
+            final AtomicReference<ListenableFuture<TCPStream>> attempt) {
+        if (result.isDone()) {
+            return;
+        }
+        if (i >= cs.length) {
+            result.setException(new IOException("Tor.connect: unable to connect to " + sp.hostname + ":" + sp.port + " after " + cs.length + " retries"));
+            return;
+        }
+        final ListenableFuture<TCPStream> stream;
+        try {
+            stream = TCPStream.connect(cs[i], sp);
+        } catch (Exception e) {
+            getLog().warn("Tor.connect: " + e.getMessage());
+            attach(cs, i + 1, sp, result, attempt);
+            return;
+        }
+        attempt.set(stream);
+        if (result.isDone()) {
+            // cancelled before the attempt was visible
+            stream.cancel(false);
+            return;
+        }
+        stream.addListener(new Runnable() {
+            public void run() {
+                try {
+                    TCPStream connected = stream.get();
+                    if (!result.set(connected)) {
+                        connected.close();
+                    }
+                } catch (ExecutionException e) {
+                    getLog().warn("Tor.connect: " + e.getCause().getMessage());
+                    attach(cs, i + 1, sp, result, attempt);
+                } catch (Exception e) {
+                    // cancelled
+                }
+            }
+        }, executor);
+    }
+
     /**
      * shut down everything
      * 
@@ -891,6 +1015,8 @@ public class Proxy extends SocketFactory {
         for (ServerConnection t : getCurrentConnections()) {
             t.close(force);
         }
+        scheduler.shutdown();
+        cellExecutor.shutdown();
     }
 
     /** synonym for close(false); */
@@ -27,11 +27,21 @@ import org.apache.commons.logging.LogFactory;
 /**
  * convenient way to handle flow-control
  * 
+ * Every DATA cell received lowers the deliver window. SENDMEs raise it again.
+ * For a stream they are only sent while the application keeps up: as long as
+ * more than BACKLOG_CELLS cells worth of data are received and not read yet,
+ * they are held back and sent when the reader drains the stream. The data
+ * kept for a stream is so bounded by its window, whatever the speed of the
+ * reader. Circuits send their SENDMEs as the cells arrive, like Tor does, so
+ * that a stream nobody reads doesn't stall the others on its circuit.
+ * 
  * @author Lexi
  */
 public class QueueFlowControlHandler implements QueueHandler {
+    static final int BACKLOG_CELLS = 10;
+
     int counter;
-    int currLevel;
+    volatile int currLevel;
     int startLevel;
     int incLevel;
     Circuit circ;
@@ -63,26 +73,68 @@ public class QueueFlowControlHandler implements QueueHandler {
         currLevel += incLevel;
     }
 
+    /** bytes received on the stream and not read by the application yet */
+    private int unread() {
+        return stream.qhT2J != null ? stream.qhT2J.unread() : 0;
+    }
+
     /** return TRUE, if cell was handled */
     public boolean handleCell(Cell cell) {
-        count();
+        // only DATA cells are subject to flow control
+        if (cell.isTypeRelay() && ((CellRelay) cell).relayCommand == RelayType.RELAY_DATA) {
+            count();
+            sendSendmes();
+        }
+        // always return FALSE to avoid swallowing cells
+        return false;
+    }
+
+    /**
+     * called after the application read data, sends the SENDMEs that were
+     * held back
+     */
+    void resume() {
+        if (currLevel <= startLevel - incLevel) {
+            sendSendmes();
+        }
+    }
+
+    private synchronized void sendSendmes() {
         // dropped below threshold - oh no!
         // better start sending SENDMEs...
-        if (currLevel <= startLevel - incLevel) {
+        while (currLevel <= startLevel - incLevel) {
+            if (stream != null && unread() > BACKLOG_CELLS * CellRelay.RELAY_DATA_SIZE) {
+                // the other side has to wait until the data is read
+                return;
+            }
             try {
                 if (circ != null) {
+                    // not driven by the application's reads on purpose: the
+                    // circuit's window is shared by all of its streams, and
+                    // holding it back for one reader that is behind would
+                    // stall the others on the circuit as well. The data kept
+                    // for a slow reader is bounded by the stream's window.
                     // send to all routers in the circuit
                     LogFactory.getLog(getClass()).debug("QueueFlowControlHandler.mainAction(): (" + counter + ") " + currLevel + "<" + startLevel + " sending SENDME for circuit " + circ);
                     for (int i = 0; i < circ.route_established; ++i) {
-                        CellRelay sendcell = new CellRelay(circ, RelayType.RELAY_SENDME);
+                        CellRelay sendcell = circ.getCellPool().acquireRelay(circ, RelayType.RELAY_SENDME);
                         sendcell.setAddressedRouter(i);
-                        circ.sendCell(sendcell);
+                        try {
+                            circ.sendCell(sendcell);
+                        } finally {
+                            sendcell.release();
+                        }
                     }
                 }
                 if (stream != null) {
                     // send to end-point
                     LogFactory.getLog(getClass()).debug("QueueFlowControlHandler.mainAction(): (" + counter + ") " + currLevel + "<" + startLevel + " sending SENDME for stream " + stream);
-                    stream.sendCell(new CellRelay(stream, RelayType.RELAY_SENDME));
+                    CellRelay sendcell = stream.circ.getCellPool().acquireRelay(stream, RelayType.RELAY_SENDME);
+                    try {
+                        stream.sendCell(sendcell);
+                    } finally {
+                        sendcell.release();
+                    }
                 }
                 increase();
             } catch (IOException e) {
@@ -92,10 +144,9 @@ public class QueueFlowControlHandler implements QueueHandler {
                 if (stream != null) {
                     LogFactory.getLog(getClass()).warn("QueueFlowControlHandler.mainAction(): error sending SENDME " + e.getMessage());
                 }
+                return;
             }
         }
-        // always return FALSE to avoid swallowing cells
-        return false;
     }
 
     /** close these things */
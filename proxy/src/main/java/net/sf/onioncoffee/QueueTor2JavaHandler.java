@@ -17,43 +17,160 @@
  */
 package net.sf.onioncoffee;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+import java.util.List;
 
 import net.sf.onioncoffee.CellRelay.RelayType;
+import net.sf.onioncoffee.common.ByteRingBuffer;
 import net.sf.onioncoffee.common.QueueHandler;
 import net.sf.onioncoffee.common.TorException;
 
 import org.apache.commons.logging.LogFactory;
 
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ValueFuture;
+
 /**
  * used to be TCPStreamThreadTor2Java
+ * 
+ * Delivers the data of a stream into a ring buffer the application reads
+ * from. The thread dispatching cells never waits for the application: data
+ * that doesn't fit into the ring waits in a spill, which is moved into the
+ * ring by the reading thread as it makes room. The bytes not read yet are
+ * what flow control looks at before it sends SENDMEs for the stream, which is
+ * told whenever the application read something.
+ * 
+ * Readers that must not block poll and ask for a future that is done when
+ * there is something to read.
  */
-public class QueueTor2JavaHandler implements QueueHandler {
+public class QueueTor2JavaHandler implements QueueHandler, ByteRingBuffer.Listener {
     TCPStream stream;
-    PipedInputStream sin; // read from tor and output to this stream
-    PipedOutputStream fromtor; // private end of this pipe
+    final ByteRingBuffer buffer; // read from tor and output to this stream
+    private final LinkedList<ByteBuffer> spill = new LinkedList<ByteBuffer>();
+    private volatile int spilled = 0; // bytes in the spill
+    private volatile boolean backlogged = false;
+    private boolean discarded = false;
+    private volatile IOException failure; // thrown instead of the end of the stream
+    private final List<ValueFuture<Void>> waiting = new LinkedList<ValueFuture<Void>>();
     boolean stopped; // as stop() is deprecated we use this toggle variable
 
+    private final InputStream input;
+
     QueueTor2JavaHandler(TCPStream stream) {
         this.stream = stream;
+        buffer = new ByteRingBuffer(Config.streamBufferSize);
+        buffer.setListener(this);
+        input = new FilterInputStream(buffer.getInputStream()) {
+            @Override
+            public int read() throws IOException {
+                return checkFailure(super.read());
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return checkFailure(super.read(b, off, len));
+            }
+
+            @Override
+            public void close() {
+                discard();
+            }
+        };
+    }
+
+    InputStream getInputStream() {
+        return input;
+    }
+
+    /**
+     * reads without blocking
+     * 
+     * @return the number of bytes read, 0 if there are none yet or -1 at the
+     *         end of the stream
+     */
+    int poll(ByteBuffer dst) throws IOException {
+        return checkFailure(buffer.poll(dst));
+    }
+
+    private int checkFailure(int n) throws IOException {
+        if (n < 0 && failure != null) {
+            throw failure;
+        }
+        return n;
+    }
+
+    /**
+     * ends the stream with an error, readers get it after the data that was
+     * received
+     */
+    void fail(IOException e) {
+        failure = e;
+        close();
+    }
+
+    /**
+     * @return done as soon as there are bytes to read or the stream ended
+     */
+    synchronized ListenableFuture<Void> whenReadable() {
+        ValueFuture<Void> retVal = ValueFuture.create();
+        if (buffer.available() > 0 || buffer.isClosed() || discarded) {
+            retVal.set(null);
+        } else {
+            waiting.add(retVal);
+        }
+        return retVal;
+    }
+
+    /** completes the futures of waiting readers, outside of the lock */
+    private void readable() {
+        List<ValueFuture<Void>> ready;
+        synchronized (this) {
+            if (waiting.isEmpty()) {
+                return;
+            }
+            ready = new LinkedList<ValueFuture<Void>>(waiting);
+            waiting.clear();
+        }
+        for (ValueFuture<Void> future : ready) {
+            future.set(null);
+        }
+    }
+
+    /** bytes received and not read by the application yet */
+    int unread() {
+        return buffer.available() + spilled;
+    }
+
+    /**
+     * the application doesn't want any more data, drops what wasn't read
+     */
+    void discard() {
+        synchronized (this) {
+            discarded = true;
+            spill.clear();
+            spilled = 0;
+            backlogged = false;
+        }
         try {
-            sin = new SafePipedInputStream();
-            fromtor = new PipedOutputStream(sin);
+            buffer.getInputStream().close();
         } catch (IOException e) {
-            LogFactory.getLog(getClass()).error("QueueTor2JavaHandler: caught IOException " + e.getMessage());
         }
+        readable();
     }
 
     public void close() {
-        this.stopped = true;
-        /* leave data around, until no more referenced by someone else */
-        // try{ sin.close(); } catch(Exception e) {}
-        try {
-            fromtor.close();
-        } catch (Exception e) {
+        synchronized (this) {
+            this.stopped = true;
+            /* leave data around, until no more referenced by someone else */
+            if (spill.isEmpty()) {
+                buffer.close();
+            }
         }
+        readable();
     }
 
     /** return TRUE, if cell was handled */
@@ -62,15 +179,12 @@ public class QueueTor2JavaHandler implements QueueHandler {
             CellRelay relay = (CellRelay) cell;
             if (relay.relayCommand == RelayType.RELAY_DATA) {
                 LogFactory.getLog(getClass()).trace("QueueTor2JavaHandler.handleCell(): stream " + stream.ID + " received data");
-                try {
-                    fromtor.write(relay.data, 0, relay.dataLength);
-                } catch (IOException e) {
-                    LogFactory.getLog(getClass()).error("QueueTor2JavaHandler.handleCell(): caught IOException " + e.getMessage());
-                }
+                deliver(relay.payload.array(), relay.payload.arrayOffset() + CellRelay.RELAY_DATA_POS, relay.dataLength);
+                readable();
                 return true;
             } else if (relay.relayCommand == RelayType.RELAY_END) {
-                LogFactory.getLog(getClass()).trace("QueueTor2JavaHandler.handleCell(): stream " + stream.ID + " is closed: " + relay.data[0]);
-                stream.closed_for_reason = (relay.payload[0]) & 0xff;
+                LogFactory.getLog(getClass()).trace("QueueTor2JavaHandler.handleCell(): stream " + stream.ID + " is closed: " + relay.getDataByte(0));
+                stream.closed_for_reason = (relay.getDataByte(0)) & 0xff;
                 stream.closed = true;
                 stream.close(true);
                 this.stopped = true;
@@ -79,4 +193,54 @@ public class QueueTor2JavaHandler implements QueueHandler {
         }
         return false;
     }
+
+    private synchronized void deliver(byte[] data, int offset, int length) {
+        if (discarded) {
+            return;
+        }
+        if (spill.isEmpty()) {
+            int n = buffer.offer(data, offset, length);
+            offset += n;
+            length -= n;
+            if (length == 0) {
+                return;
+            }
+        }
+        // the cell goes back to the pool, so the rest is copied
+        byte[] rest = new byte[length];
+        System.arraycopy(data, offset, rest, 0, length);
+        spill.add(ByteBuffer.wrap(rest));
+        spilled += length;
+        backlogged = true;
+    }
+
+    /**
+     * called by the reading thread, moves the spill into the room it just
+     * made and lets flow control know
+     */
+    public void drained(int bytes) {
+        if (backlogged) {
+            refill();
+            readable();
+        }
+        if (stream.qhFC != null) {
+            stream.qhFC.resume();
+        }
+    }
+
+    private synchronized void refill() {
+        for (ByteBuffer data; (data = spill.peek()) != null;) {
+            int n = buffer.offer(data.array(), data.arrayOffset() + data.position(), data.remaining());
+            data.position(data.position() + n);
+            spilled -= n;
+            if (data.hasRemaining()) {
+                return;
+            }
+            spill.poll();
+        }
+        backlogged = false;
+        if (stopped) {
+            buffer.close();
+        }
+    }
 }
@@ -11,14 +11,12 @@ import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import java.util.zip.DataFormatException;
 
 import net.sf.onioncoffee.common.Cache;
 import net.sf.onioncoffee.common.Encoding;
-import net.sf.onioncoffee.common.RegexUtil;
 import net.sf.onioncoffee.common.SimpleFileCache;
 
 import org.apache.commons.collections15.CollectionUtils;
@@ -35,9 +33,9 @@ public class RefreshableDirectory extends Directory {
     private static final int MAX_REQUEST_TRIES = 10;
     private static final String CONSENSUS_KEY = "consensus";
     private static final String SERVER_KEY_PREFIX = "/servers";
-    private static final String ROUTER_DESRIPTOR_SPLITTER = "^(router.+?-----END SIGNATURE-----)$";
 
     private final ExecutorService executor;
+    private final DescriptorParser descriptorParser = new DescriptorParser();
     private final Cache<String, String> dataCache = new SimpleFileCache(Config.getConfigDirFile());
     private final HttpClient client = new HttpClient();
 
@@ -98,6 +96,8 @@ public class RefreshableDirectory extends Directory {
         private final Map<String, ServerFault> serverFaults = new HashMap<String, ServerFault>();
         private final Set<String> goodServers = new HashSet<String>();
         private final Set<String> invalidServers = new HashSet<String>();
+        // server requests whose descriptors are still being verified
+        private final List<DirectoryRequest> parsingRequests = new LinkedList<DirectoryRequest>();
 
         private class ServerFault {
             @SuppressWarnings("unused")
@@ -126,6 +126,7 @@ public class RefreshableDirectory extends Directory {
             public String result;
             public int tries = 0;
             public LinkedList<DirectoryConnection> servicingConnections = new LinkedList<DirectoryConnection>();
+            public CountDownLatch parsed;
 
             public DirectoryRequest(Collection<String> servers) {
                 this.servers = new ArrayList<String>(servers);
@@ -137,17 +138,24 @@ public class RefreshableDirectory extends Directory {
                     dataCache.cacheItem(CONSENSUS_KEY, result);
                     parseConsensus(result);
                 } else {
-                    Pattern p = Pattern.compile(ROUTER_DESRIPTOR_SPLITTER, RegexUtil.REGEX_MULTILINE_FLAGS);
-                    Matcher m = p.matcher(result);
-                    while (m.find()) {
-                        String descriptor = m.group(1);
-                        String fingerprint = Server.parseDescriptorFingerprint(descriptor);
-                        Server server = getServers().get(fingerprint);
-                        if (!parseServer(server, descriptor)) {
-                            invalidServers.add(fingerprint);
-                        } else {
-                            dataCache.cacheItem(getServerKey(fingerprint), descriptor);
+                    // verified on the descriptor parser's threads, not on the
+                    // http client's
+                    parsed = descriptorParser.parse(RefreshableDirectory.this, result, new DescriptorParser.Listener() {
+                        public void parsed(Map<String, String> valid, List<String> invalid) {
+                            synchronized (invalidServers) {
+                                invalidServers.addAll(invalid);
+                            }
+                            for (Map.Entry<String, String> entry : valid.entrySet()) {
+                                try {
+                                    dataCache.cacheItem(getServerKey(entry.getKey()), entry.getValue());
+                                } catch (IOException e) {
+                                    getLog().warn("unable to cache descriptor of " + entry.getKey(), e);
+                                }
+                            }
                         }
+                    });
+                    synchronized (parsingRequests) {
+                        parsingRequests.add(this);
                     }
                 }
             }
@@ -334,6 +342,16 @@ public class RefreshableDirectory extends Directory {
                     pendingServers.removeAll(req.servers);
                 }
             }
+            synchronized (parsingRequests) {
+                for (Iterator<DirectoryRequest> itr = parsingRequests.iterator(); itr.hasNext();) {
+                    DirectoryRequest req = itr.next();
+                    if (req.parsed.getCount() == 0) {
+                        itr.remove();
+                    } else {
+                        pendingServers.removeAll(req.servers);
+                    }
+                }
+            }
 
             for (Iterator<String> itr = pendingServers.iterator(); itr.hasNext();) {
                 String s = itr.next();
@@ -343,7 +361,9 @@ public class RefreshableDirectory extends Directory {
                     itr.remove();
                 }
             }
-            pendingServers.removeAll(invalidServers);
+            synchronized (invalidServers) {
+                pendingServers.removeAll(invalidServers);
+            }
             List<String> pendingServersList = new ArrayList<String>(pendingServers);
             while (!pendingServersList.isEmpty()) {
                 int end = Math.min(pendingServersList.size(), 96);
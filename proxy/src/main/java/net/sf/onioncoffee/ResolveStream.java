@@ -71,22 +71,23 @@ public class ResolveStream extends TCPStream {
         // wait for RELAY_RESOLVED
         CellRelay relay = queue.receiveRelayCell(RelayType.RELAY_RESOLVED);
         // read payload
-        int len = ((relay.data[1]) & 0xff);
-        byte[] value = new byte[len];
-        System.arraycopy(relay.data, 2, value, 0, value.length);
+        byte type = relay.getDataByte(0);
+        int len = ((relay.getDataByte(1)) & 0xff);
+        byte[] value = relay.extractData(2, len);
+        relay.release();
         // check for error
-        if (relay.data[0] == (byte) 0xf0) {
+        if (type == (byte) 0xf0) {
             throw new TorException("transient error: " + new String(value));
         }
-        if (relay.data[0] == (byte) 0xf1) {
+        if (type == (byte) 0xf1) {
             throw new TorException("non transient error: " + new String(value));
         }
         // check return code
-        if ((relay.data[0] != 0) && (relay.data[0] != 4) && (relay.data[0] != 6)) {
-            throw new TorException("can't handle answers of type " + relay.data[0]);
+        if ((type != 0) && (type != 4) && (type != 6)) {
+            throw new TorException("can't handle answers of type " + type);
         }
         // return payload
-        if (relay.data[0] == 0) {
+        if (type == 0) {
             return new String(value);
         } else {
             return InetAddress.getByAddress(value);
@@ -1,23 +1,34 @@
 package net.sf.onioncoffee;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
-import java.util.HashMap;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
 import javax.net.ssl.TrustManager;
 
 import net.sf.onioncoffee.common.TorException;
 
-import org.apache.mina.core.buffer.IoBuffer;
 import org.apache.mina.core.future.ConnectFuture;
 import org.apache.mina.core.service.IoHandlerAdapter;
 import org.apache.mina.core.service.IoProcessor;
 import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.codec.ProtocolCodecFilter;
 import org.apache.mina.filter.ssl.SslFilter;
 import org.apache.mina.transport.socket.nio.NioSession;
 import org.apache.mina.transport.socket.nio.NioSocketConnector;
@@ -25,10 +36,22 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class ServerConnection extends IoHandlerAdapter {
-    private static final String[] ENABLED_SUITES = { 
-        "SSL_DHE_RSA_WITH_3DES_EDE_CBC_SHA",  //
-        "TLS_DHE_RSA_WITH_AES_128_CBC_SHA"  //
+    private static final Logger LOG = LoggerFactory.getLogger(ServerConnection.class);
+    private static final AtomicInteger CONNECTION_IDS = new AtomicInteger();
+    /*
+     * offering more than the v1 cipher list tells the router that we do the
+     * in-protocol (v3) handshake with VERSIONS and NETINFO cells. Suites the
+     * JRE doesn't support are left out.
+     */
+    private static final String[] PREFERRED_SUITES = { 
+        "TLS_ECDHE_RSA_WITH_AES_128_CBC_SHA",  //
+        "TLS_ECDHE_RSA_WITH_AES_256_CBC_SHA",  //
+        "TLS_DHE_RSA_WITH_AES_128_CBC_SHA",  //
+        "TLS_DHE_RSA_WITH_AES_256_CBC_SHA",  //
+        "TLS_RSA_WITH_AES_128_CBC_SHA",  //
+        "SSL_DHE_RSA_WITH_3DES_EDE_CBC_SHA"  //
     };
+    private static final long HANDSHAKE_TIMEOUT = 20 * 1000L;
     private static SSLContext SSL_CONTEXT; {
         try {
             TrustManager[] TRUST_MANAGERS = { new TorX509TrustManager() };
@@ -39,27 +62,98 @@ public class ServerConnection extends IoHandlerAdapter {
         }
     }
 
+    private static String[] getEnabledSuites(SSLContext context) {
+        List<String> supported = Arrays.asList(context.getSupportedSSLParameters().getCipherSuites());
+        List<String> retVal = new ArrayList<String>();
+        for (String suite : PREFERRED_SUITES) {
+            if (supported.contains(suite)) {
+                retVal.add(suite);
+            }
+        }
+        return retVal.toArray(new String[retVal.size()]);
+    }
+
 
     boolean stopped = false;
     boolean closed = false;
     private final Server server;
     private final IoSession session;
+    private final CellBatcher batcher;
+    private final CircuitExecutor circuitExecutor;
+    private final FlightRecorder recorder = FlightRecorder.getInstance();
+    /* identifies the connection in the flight recorder */
+    final int id = CONNECTION_IDS.incrementAndGet();
+    private final CountDownLatch handshake = new CountDownLatch(1);
+    /* link protocol version, 1 until VERSIONS cells have been exchanged */
+    private volatile int linkVersion = 1;
+    /* set once the CERTS cell proved the router's identity */
+    private volatile boolean authenticated = false;
+    private int lastCircuitId = 0;
 
-    Map<Integer, Circuit> circuits = new HashMap<Integer, Circuit>();
+    Map<Integer, Circuit> circuits = new ConcurrentHashMap<Integer, Circuit>();
+    final CellPool cellPool = new CellPool();
     
-    public ServerConnection(Server server, IoProcessor<NioSession> procssor) throws IOException {
+    /**
+     * @param scheduler
+     *            used to flush partially filled batches of outgoing cells
+     * @param circuitExecutor
+     *            decrypts and dispatches received cells, in parallel for
+     *            different circuits
+     */
+    public ServerConnection(Server server, IoProcessor<NioSession> procssor, ScheduledExecutorService scheduler, CircuitExecutor circuitExecutor) throws IOException, InterruptedException {
         this.server = server;
+        this.circuitExecutor = circuitExecutor;
 
         NioSocketConnector connector = new NioSocketConnector(procssor);
         connector.setConnectTimeoutMillis(30*1000L);
         connector.setHandler(this);
         SslFilter sslFilter = new SslFilter(SSL_CONTEXT);
         sslFilter.setUseClientMode(true);
-        sslFilter.setEnabledCipherSuites(ENABLED_SUITES);
+        sslFilter.setEnabledCipherSuites(getEnabledSuites(SSL_CONTEXT));
         connector.getFilterChain().addLast("sslFilter", sslFilter);
+        connector.getFilterChain().addLast("cellCodec", new ProtocolCodecFilter(new CellEncoder(), new CellDecoder(cellPool)));
         ConnectFuture cf = connector.connect(server.getRouterAddress());
         cf.awaitUninterruptibly();
         session = cf.getSession();
+        batcher = new CellBatcher(session, scheduler, Config.cellBatchSize, Config.cellBatchDelayMicros);
+        negotiateVersion();
+    }
+
+    /**
+     * does the in-protocol handshake: sends our VERSIONS cell and waits until
+     * the router answered with VERSIONS, CERTS and NETINFO. A router that
+     * doesn't answer in time or can't prove its identity fails the
+     * connection, no circuits are built on a link with an unfinished
+     * handshake.
+     */
+    private void negotiateVersion() throws IOException, InterruptedException {
+        byte[] versions = new byte[2 * Cell.LINK_VERSIONS.length];
+        for (int i = 0; i < Cell.LINK_VERSIONS.length; ++i) {
+            versions[2 * i + 1] = (byte) Cell.LINK_VERSIONS[i];
+        }
+        session.write(new Cell(null, 0, Cell.CellType.CELL_VERSIONS, ByteBuffer.wrap(versions)));
+        boolean done = handshake.await(HANDSHAKE_TIMEOUT, TimeUnit.MILLISECONDS);
+        if (!done) {
+            getLog().warn("no VERSIONS and NETINFO from " + server.getName() + " within " + HANDSHAKE_TIMEOUT / 1000 + " s");
+            close(true);
+        }
+        if (closed || !session.isConnected()) {
+            throw new IOException("link handshake with " + server.getName() + " failed");
+        }
+    }
+
+    /** the link protocol version negotiated with the router */
+    public int getLinkVersion() {
+        return linkVersion;
+    }
+
+    /**
+     * @return whether the router proved with its CERTS cell that it holds
+     *         the identity key of the directory's fingerprint, so the TLS
+     *         link ends at the router and nobody in between
+     */
+    public boolean isAuthenticated() {
+        return authenticated;
     }
 
     public void close() {
@@ -67,8 +161,10 @@ public class ServerConnection extends IoHandlerAdapter {
     }
 
     /**
-     * converts a cell to bytes and transmits it over the line. received data
-     * is dispatched by the class TLSDispatcher
+     * converts a cell to bytes and transmits it over the line. The cell is
+     * encoded right away but may be held back shortly to be written together
+     * with the following cells. received data is dispatched by the class
+     * TLSDispatcher
      * 
      * @param c
      *            the cell to send
@@ -76,49 +172,40 @@ public class ServerConnection extends IoHandlerAdapter {
      * @see TLSDispatcher
      */
     public void sendCell(Cell c) throws IOException {
-        if (getLog().isTraceEnabled()) {
-            if (c.command != Cell.CellType.CELL_RELAY) {
-                getLog().trace("writing cell with command " + c.command + " to " + server.getName());
-            } else {
-                getLog().trace("writing relay cell of type " + ((CellRelay)c).relayCommand + " to " + server.getName());
-            }
-        }
-        session.write(IoBuffer.wrap(c.toByteArray()));
+        recorder.record(FlightRecorder.EVENT_SENT, id, c);
+        batcher.write(c);
     }
     
     private Logger getLog() {
-        return LoggerFactory.getLogger(getClass());
+        return LOG;
     }
 
+    /**
+     * hands out circuit ids in turn. We opened the connection, so our ids have
+     * the most significant bit set, which keeps them apart from the ones the
+     * router picks. Ids still in use are skipped, which hardly ever happens
+     * with 31 bits.
+     */
     synchronized private int getFreeCircuitId() {
         if (closed) {
             throw new IllegalStateException("ServerConnection.assign_circID(): Connection to " + server.getName() + " is closed for new circuits");
         }
-        // find a free number (other than zero)
-        int retVal = 0;
-        for (int j = 0; retVal == 0; ++j) {
-            if (j > 1000) {
-                throw new IllegalStateException("ServerConnection.assign_circID(): no more free IDs");
-            }
-
-            // Deprecated: 16 bit unsigned Integers with MSB set
-            // id = FirstNodeHandler.rnd.nextInt() & 0xffff | 0x8000;
-            // XXX: Since the PrivateKeyHandler is gone, we don't need to consider
-            // the MSB as long as we are in client mode (see main-tor-spec.txt, Section 5.1)
-            retVal = new Random().nextInt() & 0xffff; // & 0x7fff;
-
-            if (circuits.containsKey(new Integer(retVal))) {
-                retVal = 0;
+        int highBit = (Cell.getCircuitIdSize(linkVersion) == Cell.CELL_CIRCID_SIZE_V4) ? 0x80000000 : 0x8000;
+        int mask = highBit - 1;
+        for (int j = 0; j <= mask; ++j) {
+            lastCircuitId = (lastCircuitId + 1) & mask;
+            int retVal = lastCircuitId | highBit;
+            if (!circuits.containsKey(retVal)) {
+                return retVal;
             }
         }
-        return retVal;
+        throw new IllegalStateException("ServerConnection.assign_circID(): no more free IDs");
     }
 
     /**
      * returns a free circID and save that it points to "c", save it to "c",
      * too. Throws an exception, if no more free IDs are available, or the TLS
-     * connection is marked as closed.<br>
-     * FIXME: replace this code with something more beautiful
+     * connection is marked as closed.
      * 
      * @param c
      *            the circuit that is going to be build through this
@@ -154,70 +241,162 @@ public class ServerConnection extends IoHandlerAdapter {
             }
         }
         if (force || circuits.isEmpty()) {
-            session.close(true);
+            batcher.flush();
+            session.close(force);
         }
     }
 
-    byte[] cellbuffer = new byte[512];
-    int cellbufferfilled = 0;
-
+    /**
+     * receives the cells framed by the CellDecoder, on the I/O thread. Cells
+     * of the link handshake are handled right away, everything else is handed
+     * to the shard of its circuit.
+     */
     @Override
     public void messageReceived(IoSession session, Object message) throws IOException {
-        IoBuffer iobuffer = (IoBuffer) message;
-        if (iobuffer.remaining() % Cell.CELL_TOTAL_SIZE != 0) {
-            getLog().warn("Partial block found " + iobuffer.remaining());
-        }
-        
-        // complete any previous partial buffer
-        if (cellbufferfilled != 0) {
-            getLog().warn("previous incomplete cell found " + cellbufferfilled);
-            int fillSize = Math.min(Cell.CELL_TOTAL_SIZE - cellbufferfilled, iobuffer.remaining());
-            iobuffer.get(cellbuffer, cellbufferfilled, fillSize);
-            cellbufferfilled += fillSize;
-            if (cellbufferfilled == Cell.CELL_TOTAL_SIZE) {
-                onCell(Cell.read(cellbuffer, circuits));
-                cellbufferfilled = 0;
-            }
+        final Cell cell = (Cell) message;
+        switch (cell.command) {
+        case CELL_VERSIONS:
+            recorder.record(FlightRecorder.EVENT_RECEIVED, id, cell);
+            onVersions(cell);
+            return;
+        case CELL_NETINFO:
+            recorder.record(FlightRecorder.EVENT_RECEIVED, id, cell);
+            onNetInfo(cell);
+            return;
+        case CELL_CERTS:
+            recorder.record(FlightRecorder.EVENT_RECEIVED, id, cell);
+            onCerts(cell);
+            return;
+        case CELL_VPADDING:
+        case CELL_AUTH_CHALLENGE:
+            recorder.record(FlightRecorder.EVENT_RECEIVED, id, cell);
+            // we don't authenticate ourselves
+            cell.release();
+            return;
         }
-        
-        if (iobuffer.position() != 0 && iobuffer.remaining() >= Cell.CELL_TOTAL_SIZE){
-            getLog().warn("reading next cell after incomplete cell found " + iobuffer.position());
+        circuitExecutor.execute(id, cell.circuitId, new Runnable() {
+            public void run() {
+                onCircuitCell(cell);
+            }
+        });
+    }
+
+    /**
+     * decrypts and dispatches a cell, runs on the shard of its circuit
+     */
+    private void onCircuitCell(Cell cell) {
+        Circuit circuit = circuits.get(cell.circuitId);
+        cell.setCircuit(circuit);
+        if (circuit != null && cell.isTypeRelay()) {
+            try {
+                ((CellRelay) cell).decrypt();
+            } catch (IOException e) {
+                drop(cell, e);
+                return;
+            } catch (RuntimeException e) {
+                // an unknown relay command, nobody would see it on the shard
+                drop(cell, e);
+                return;
+            }
         }
+        onCell(cell);
+    }
 
-        // grab any complete cells in the packet
-        while ((iobuffer.remaining()) >= Cell.CELL_TOTAL_SIZE) {
-            iobuffer.get(cellbuffer);
-            onCell(Cell.read(cellbuffer, circuits));
+    private void drop(Cell cell, Exception e) {
+        getLog().warn("dropping relay cell on circuit " + cell.circuitId + " from " + server.getName() + ": " + e.getMessage());
+        recorder.record(FlightRecorder.EVENT_DROPPED, id, cell);
+        cell.release();
+    }
+    
+    private void onVersions(Cell cell) {
+        cell.release();
+        Integer version = (Integer) session.getAttribute(CellDecoder.LINK_VERSION);
+        if (version == null) {
+            fail("no link protocol version in common with " + server.getName());
+            return;
         }
-        
-        // buffer any leftover bytes for the next incoming message
-        if ((iobuffer.remaining()) > 0) {
-            getLog().warn("leftover bytes found " + iobuffer.remaining());
-            cellbufferfilled = iobuffer.remaining();
-            iobuffer.get(cellbuffer, 0, cellbufferfilled);
-            assert(0 == iobuffer.remaining());
+        getLog().debug("using link protocol " + version + " with " + server.getName());
+        linkVersion = version;
+        batcher.setCircuitIdSize(Cell.getCircuitIdSize(version));
+    }
+
+    /**
+     * checks the router's certificates against its fingerprint in the
+     * directory and the certificate of the TLS handshake, which the
+     * TorX509TrustManager accepted unseen
+     */
+    private void onCerts(Cell cell) {
+        try {
+            SSLSession ssl = (SSLSession) session.getAttribute(SslFilter.SSL_SESSION);
+            if (ssl == null) {
+                throw new CertificateException("no TLS session");
+            }
+            Certificate[] chain = ssl.getPeerCertificates();
+            LinkCertificates.verify(cell.payload, server.getFingerprintBytes(), chain[0]);
+            authenticated = true;
+        } catch (CertificateException e) {
+            fail("CERTS of " + server.getName() + " rejected: " + e.getMessage());
+        } catch (SSLPeerUnverifiedException e) {
+            fail("no TLS certificate from " + server.getName());
+        } finally {
+            cell.release();
         }
     }
-    
 
-    private void onCell(Cell cell) {
-        if (getLog().isTraceEnabled()) {
-            if (cell.command != Cell.CellType.CELL_RELAY) {
-                getLog().trace("received cell with command " + cell.command + " from " + server.getName());
-            } else {
-                getLog().trace("received relay cell of type " + ((CellRelay)cell).relayCommand + " from " + server.getName());
+    private void fail(String reason) {
+        getLog().warn(reason);
+        close(true);
+        handshake.countDown();
+    }
+
+    /**
+     * the NETINFO cell of the router completes the handshake, it's answered
+     * with ours. We're a client, so we don't tell about our own addresses.
+     */
+    private void onNetInfo(Cell cell) throws IOException {
+        if (!authenticated) {
+            cell.release();
+            if (!closed) {
+                fail("NETINFO from " + server.getName() + " without valid CERTS");
             }
+            return;
+        }
+        long skew = (cell.payload.getInt(0) & 0xffffffffL) - System.currentTimeMillis() / 1000;
+        cell.release();
+        getLog().debug("NETINFO from " + server.getName() + ", clock skew " + skew + "s");
+
+        Cell netInfo = new Cell(null, 0, Cell.CellType.CELL_NETINFO);
+        ByteBuffer payload = netInfo.payload;
+        payload.putInt(0, (int) (System.currentTimeMillis() / 1000));
+        byte[] address = server.getAddress().getAddress();
+        payload.put(4, (byte) (address.length == 4 ? 4 : 6));
+        payload.put(5, (byte) address.length);
+        for (int i = 0; i < address.length; ++i) {
+            payload.put(6 + i, address[i]);
         }
-            
+        // followed by zero addresses of our own
+        sendCell(netInfo);
+        batcher.flush();
+        handshake.countDown();
+    }
+
+    private void onCell(Cell cell) {
         if (cell.command == Cell.CellType.CELL_PADDING) {
+            recorder.record(FlightRecorder.EVENT_RECEIVED, id, cell);
+            cell.release();
             return;
         }
 
         if (cell.getCircuit() == null) {
-            getLog().warn("TLSDispatcher.run: received cell for circuit " + cell.circuitId + " from " + server.getName() + ". But no such circuit exists.");
+            // happens regularly for cells that were on their way when the
+            // circuit was closed, the recorder has the details
+            recorder.record(FlightRecorder.EVENT_DROPPED, id, cell);
+            cell.release();
             return;
         }
 
+        recorder.record(FlightRecorder.EVENT_RECEIVED, id, cell);
+
         cell.getCircuit().onCell(cell);
     }
 
@@ -22,15 +22,27 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetAddress;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
 
 import net.sf.onioncoffee.CellRelay.RelayType;
-import net.sf.onioncoffee.common.Encoding;
 import net.sf.onioncoffee.common.Queue;
+import net.sf.onioncoffee.common.QueueHandler;
 import net.sf.onioncoffee.common.TorException;
 
 import org.apache.commons.logging.LogFactory;
 
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ValueFuture;
+
 /**
  * handles the features of single TCP streams on top of circuits through the tor
  * network. provides functionality to send and receive data by this streams and
@@ -46,31 +58,74 @@ public class TCPStream extends CellSink implements Closeable {
 
     
     /**
+     * packs what is written into DATA cells. A cell is sent when it is full,
+     * on flush() or when its first byte has waited for the flush delay of the
+     * stream, so that small writes don't take a cell each.
      * 
      * @author Lexi Pimenidis
      */
-    class TCPStreamOutputStream extends OutputStream {
+    class TCPStreamOutputStream extends OutputStream implements Runnable {
         boolean stopped; // as stop() is depreacated we use this toggle variable
+        private final int flushDelay = sp != null ? sp.flushDelayMillis : Config.streamFlushDelay;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final byte[] buffer = new byte[CellRelay.RELAY_DATA_SIZE];
+        private int buffered = 0;
+        private ScheduledFuture<?> pendingFlush;
+        // set by the timer, a writer holding the lock flushes when it's done
+        private volatile boolean flushDue = false;
 
         @Override
-        public void close() {
-            this.stopped = true;
+        public void close() throws IOException {
+            // a stream that is closing has flushed before its END cell
+            if (!closed) {
+                flush();
+            }
+            stopped = true;
         }
 
         @Override
         public void write(int b) throws IOException {
-            write(Encoding.intToNByteArray(b, 4), 0, 1);
+            lock.lock();
+            try {
+                checkOpen();
+                if (buffered == buffer.length) {
+                    // a send failed and left a full cell behind
+                    sendBuffer();
+                }
+                buffer[buffered++] = (byte) b;
+                written();
+            } finally {
+                unlock();
+            }
         }
 
         @Override
         public void write(byte[] b, int off, int len) throws IOException {
-            if (len == 0) {
-                return;
-            }
-            for (CellRelay cell : CellRelay.getRelayCells(TCPStream.this, b, off, len)) {
-                sendCell(cell);
+            lock.lock();
+            try {
+                checkOpen();
+                // one cell at a time, so a closed window holds back the rest
+                while (len > 0) {
+                    if (buffered == 0 && len >= buffer.length) {
+                        // full cells are sent straight from the caller's array
+                        send(b, off, buffer.length);
+                        off += buffer.length;
+                        len -= buffer.length;
+                    } else {
+                        int n = Math.min(len, buffer.length - buffered);
+                        System.arraycopy(b, off, buffer, buffered, n);
+                        buffered += n;
+                        off += n;
+                        len -= n;
+                        if (buffered == buffer.length) {
+                            sendBuffer();
+                        }
+                    }
+                }
+                written();
+            } finally {
+                unlock();
             }
-            
         }
 
         @Override
@@ -78,9 +133,135 @@ public class TCPStream extends CellSink implements Closeable {
             write(b, 0, b.length);
         }
 
+        @Override
+        public void flush() throws IOException {
+            lock.lock();
+            try {
+                if (buffered > 0) {
+                    sendBuffer();
+                }
+            } finally {
+                unlock();
+            }
+        }
+
+        /**
+         * sends what is buffered if that needs no waiting, for a stream that
+         * is aborted. A closed window can't take the rest, so the tail is
+         * dropped then. A writer blocked on a package window holds the lock,
+         * it gets an IOException when the stream's window is closed.
+         */
+        void flushNow() {
+            if (!lock.tryLock()) {
+                LogFactory.getLog(getClass()).debug("TCPStream: not flushing " + TCPStream.this + ", a writer is blocked");
+                return;
+            }
+            try {
+                if (buffered > 0) {
+                    if (tryTakePackageWindow()) {
+                        sendData(buffer, 0, buffered);
+                    } else {
+                        LogFactory.getLog(getClass()).warn("TCPStream: dropping " + buffered + " bytes of " + TCPStream.this + ", the package window is closed");
+                    }
+                }
+            } catch (IOException e) {
+                LogFactory.getLog(getClass()).warn("TCPStream: dropping " + buffered + " bytes of " + TCPStream.this + ": " + e.getMessage());
+            } finally {
+                buffered = 0;
+                if (pendingFlush != null) {
+                    pendingFlush.cancel(false);
+                    pendingFlush = null;
+                }
+                lock.unlock();
+            }
+        }
+
+        /**
+         * the flush timer. Runs on the timer's thread, so it doesn't wait for
+         * the lock or for the package windows.
+         */
+        public void run() {
+            flushDue = true;
+            while (flushDue && lock.tryLock()) {
+                try {
+                    flushDue = false;
+                    pendingFlush = null;
+                    if (buffered == 0 || stopped) {
+                        continue;
+                    }
+                    if (tryTakePackageWindow()) {
+                        sendData(buffer, 0, buffered);
+                        buffered = 0;
+                    } else {
+                        // try again as soon as a SENDME opened the windows
+                        final ListenableFuture<Void> writable = whenWritable();
+                        writable.addListener(new Runnable() {
+                            public void run() {
+                                try {
+                                    writable.get();
+                                } catch (Exception e) {
+                                    return; // closed
+                                }
+                                TCPStreamOutputStream.this.run();
+                            }
+                        }, TIMER);
+                    }
+                } catch (IOException e) {
+                    LogFactory.getLog(getClass()).debug("TCPStream: flushing " + TCPStream.this + " failed: " + e.getMessage());
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        private void unlock() {
+            lock.unlock();
+            if (flushDue) {
+                run();
+            }
+        }
+
+        private void checkOpen() throws IOException {
+            if (stopped) {
+                throw new IOException("stream " + TCPStream.this + " is closed");
+            }
+        }
+
+        /** sends or schedules what is left of a write */
+        private void written() throws IOException {
+            if (buffered == buffer.length || (buffered > 0 && flushDelay <= 0)) {
+                sendBuffer();
+            } else if (buffered > 0 && pendingFlush == null) {
+                pendingFlush = TIMER.schedule(this, flushDelay, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private void sendBuffer() throws IOException {
+            send(buffer, 0, buffered);
+            buffered = 0;
+            if (pendingFlush != null) {
+                pendingFlush.cancel(false);
+                pendingFlush = null;
+            }
+        }
+
+        private void send(byte[] b, int off, int len) throws IOException {
+            takePackageWindow();
+            sendData(b, off, len);
+        }
     }
+
+    // sends the held back data and times out the connects of all streams
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread retVal = new Thread(r, "TCPStream timer");
+            retVal.setDaemon(true);
+            return retVal;
+        }
+    });
     
     private int queue_timeout = Config.queueTimeoutStreamBuildup; // wait x seconds for answer
+    private long setupStart; // when the BEGIN was sent
     
     Circuit circ;
 
@@ -92,9 +273,9 @@ public class TCPStream extends CellSink implements Closeable {
 
     public TCPStreamProperties sp;
 
-    public boolean established = false;
+    public volatile boolean established = false;
 
-    public boolean closed = false;
+    public volatile boolean closed = false;
 
     public int closed_for_reason; // set by CellRelay. descriptive Strings are in
     // CellRelay.reason_to_string
@@ -104,8 +285,11 @@ public class TCPStream extends CellSink implements Closeable {
     QueueTor2JavaHandler qhT2J;
     QueueFlowControlHandler qhFC;
     TCPStreamOutputStream outputStream;
+    TCPStreamChannel channel;
     int streamLevelFlowControl = 500;
     static final int streamLevelFlowControlIncrement = 50;
+    // DATA cells we may send before the exit sends a SENDME
+    final PackageWindow packageWindow = new PackageWindow(500, streamLevelFlowControlIncrement);
 
     /**
      * creates a stream on top of a existing circuit. users and programmers
@@ -121,21 +305,108 @@ public class TCPStream extends CellSink implements Closeable {
      * @see TCPStreamProperties
      */
     public TCPStream(Circuit c, TCPStreamProperties sp) throws IOException, TorException{
-        this.sp = sp;
-        established = false;
-//        last_cell = last_action = created = System.currentTimeMillis();
-        int setupDuration; // stream establishment duration
-        long startSetupTime;
+        this(c);
+        attach(sp);
+        if (sp.optimisticData) {
+            // usable right away, the exit answers in the background
+            begin();
+            return;
+        }
+        sendBegin();
 
-        // attach stream to circuit
+        // wait for RELAY_CONNECTED
+        byte[] ip = null;
+        try {
+            LogFactory.getLog(getClass()).debug("TCPStream: Waiting for Relay-Connected Cell...");
+            CellRelay connected = queue.receiveRelayCell(RelayType.RELAY_CONNECTED);
+            if (connected.dataLength >= 4) {
+                ip = connected.extractData(0, 4);
+            }
+            connected.release();
+            LogFactory.getLog(getClass()).debug("TCPStream: Got Relay-Connected Cell");
+        } catch (TorException e) {
+            if (!closed) {
+                LogFactory.getLog(getClass()).warn("TCPStream: Closed:" + this + " due to TorException:" + e.getMessage());
+            }
+            closed = true;
+            // MRK: when the circuit does not work at this point: close it
+            // Lexi: please do it soft! there might be other streams
+            // working on this circuit...
+            // c.close(false);
+            // Lexi: even better: increase only a counter for this circuit
+            // otherwise circuits will close on an average after 3 or 4
+            // streams. this is nothing we'd like to happen
+            c.reportStreamFailure(this);
+            throw e;
+        } catch (IOException e) {
+            closed = true;
+            LogFactory.getLog(getClass()).warn("TCPStream: Closed:" + this + " due to IOException:" + e.getMessage());
+            throw e;
+        }
+        connected(ip);
+    }
+
+    /** called from derived ResolveStream */
+    TCPStream(Circuit c) {
         circ = c;
+    }
+
+    /**
+     * opens a stream without waiting for the exit. The future is done when
+     * the exit connected, and fails if the exit refused, the circuit went
+     * away or there was no answer within the queue timeout. Cancelling it
+     * ends the stream. With optimistic data the future is done right away.
+     * 
+     * @see Proxy#connectAsync(TCPStreamProperties, long)
+     */
+    static ListenableFuture<TCPStream> connect(Circuit c, TCPStreamProperties sp) throws IOException {
+        TCPStream stream = new TCPStream(c);
+        stream.attach(sp);
+        return stream.begin();
+    }
+
+    /**
+     * sends the BEGIN and leaves the answer to a queue handler. With
+     * optimistic data the stream can be read and written from now on: what
+     * is written goes out right behind the BEGIN, and the exit holds it
+     * until it connected. If the exit refuses or doesn't answer, the stream
+     * is closed and readers and writers get an IOException that tells the
+     * reason. Data written up to then never reached a refusing exit's
+     * destination.
+     */
+    private ListenableFuture<TCPStream> begin() throws IOException {
+        Connecting connecting = new Connecting();
+        // before the data handlers, so that it sees an END first
+        queue.addHandler(connecting);
+        if (sp.optimisticData) {
+            openData();
+        }
+        try {
+            sendBegin();
+        } catch (IOException e) {
+            closed = true;
+            close(true);
+            throw e;
+        }
+        if (sp.optimisticData) {
+            connecting.future.set(this);
+        }
+        return connecting.future;
+    }
+
+    /** attaches the stream to its circuit */
+    private void attach(TCPStreamProperties sp) {
+        this.sp = sp;
+        established = false;
         ID = circ.assignStreamID(this);
         queue = new Queue(queue_timeout);
         closed = false;
         closed_for_reason = 0;
         LogFactory.getLog(getClass()).debug("TCPStream: building new stream " + this);
+    }
 
-        startSetupTime = System.currentTimeMillis();
+    private void sendBegin() throws IOException {
+        setupStart = System.currentTimeMillis();
         // send RELAY-BEGIN
         CellRelay cell = new CellRelay(this, RelayType.RELAY_BEGIN);
         {
@@ -162,36 +433,18 @@ public class TCPStream extends CellSink implements Closeable {
             cell.appendData(new byte[]{0});
         }
         sendCell(cell);
+    }
 
-        // wait for RELAY_CONNECTED
-        try {
-            LogFactory.getLog(getClass()).debug("TCPStream: Waiting for Relay-Connected Cell...");
-            queue.receiveRelayCell(RelayType.RELAY_CONNECTED);
-            LogFactory.getLog(getClass()).debug("TCPStream: Got Relay-Connected Cell");
-        } catch (TorException e) {
-            if (!closed) {
-                LogFactory.getLog(getClass()).warn("TCPStream: Closed:" + this + " due to TorException:" + e.getMessage());
-            }
-            closed = true;
-            // MRK: when the circuit does not work at this point: close it
-            // Lexi: please do it soft! there might be other streams
-            // working on this circuit...
-            // c.close(false);
-            // Lexi: even better: increase only a counter for this circuit
-            // otherwise circuits will close on an average after 3 or 4
-            // streams. this is nothing we'd like to happen
-            c.reportStreamFailure(this);
-            throw e;
-        } catch (IOException e) {
-            closed = true;
-            LogFactory.getLog(getClass()).warn("TCPStream: Closed:" + this + " due to IOException:" + e.getMessage());
-            throw e;
-        }
-
-        setupDuration = (int) (System.currentTimeMillis() - startSetupTime);
+    /**
+     * sets the stream up for data once the exit connected
+     * 
+     * @param ip
+     *            the address the exit connected to, may be null
+     */
+    private void connected(byte[] ip) throws TorException {
+        int setupDuration = (int) (System.currentTimeMillis() - setupStart);
 
         // store resolved IP in TCPStreamProperties
-        byte[] ip = cell.extractData();
         try {
             sp.addr = InetAddress.getByAddress(ip);
             sp.setResolved(true);
@@ -199,6 +452,20 @@ public class TCPStream extends CellSink implements Closeable {
             LogFactory.getLog(getClass()).trace("TCPStream: storing resolved IP " + sp.addr.toString());
         } catch (IOException e) {
         }
+        if (qhT2J == null) {
+            openData();
+        }
+
+        LogFactory.getLog(getClass()).info("TCPStream: build stream " + this + " within " + setupDuration + " ms");
+        // attach stream to history
+        circ.registerStream(sp, setupDuration);
+        established = true;
+        // Tor.lastSuccessfulConnection = new Date(System.currentTimeMillis());
+//        el.fireEvent(new TorEvent(TorEvent.STREAM_BUILD, this, "Stream build: " + print()));
+    }
+
+    /** sets up the handlers and streams for the data */
+    private void openData() {
         // create reading threads to relay between user-side and tor-side
         // tor2java = new TCPStreamThreadTor2Java(this);
         // java2tor = new TCPStreamThreadJava2Tor(this);
@@ -207,18 +474,90 @@ public class TCPStream extends CellSink implements Closeable {
         qhT2J = new QueueTor2JavaHandler(this);
         this.queue.addHandler(qhT2J);
         outputStream = new TCPStreamOutputStream();
-
-        LogFactory.getLog(getClass()).info("TCPStream: build stream " + this + " within " + setupDuration + " ms");
-        // attach stream to history
-        circ.registerStream(sp, setupDuration);
-        established = true;
-        // Tor.lastSuccessfulConnection = new Date(System.currentTimeMillis());
-//        el.fireEvent(new TorEvent(TorEvent.STREAM_BUILD, this, "Stream build: " + print()));
+        channel = new TCPStreamChannel(this);
     }
 
-    /** called from derived ResolveStream */
-    TCPStream(Circuit c) {
-        circ = c;
+    /**
+     * waits for the answer to the BEGIN of begin() on the thread that
+     * dispatches the cells of the circuit, and for the timeout on the timer
+     */
+    private class Connecting implements QueueHandler, Runnable {
+        final ValueFuture<TCPStream> future = ValueFuture.create();
+        private final ScheduledFuture<?> timeout;
+
+        Connecting() {
+            timeout = TIMER.schedule(this, queue_timeout, TimeUnit.SECONDS);
+            // a caller that gave up ends the stream
+            future.addListener(new Runnable() {
+                public void run() {
+                    if (future.isCancelled()) {
+                        timeout.cancel(false);
+                        TCPStream.this.abort();
+                    }
+                }
+            }, MoreExecutors.sameThreadExecutor());
+        }
+
+        public boolean handleCell(Cell cell) throws TorException {
+            if (!cell.isTypeRelay()) {
+                return false;
+            }
+            CellRelay relay = (CellRelay) cell;
+            if (relay.relayCommand == RelayType.RELAY_CONNECTED) {
+                LogFactory.getLog(getClass()).debug("TCPStream: Got Relay-Connected Cell");
+                // the cell is consumed, the queue doesn't look at other handlers
+                queue.removeHandler(this);
+                timeout.cancel(false);
+                connected(relay.dataLength >= 4 ? relay.extractData(0, 4) : null);
+                // already done with optimistic data
+                if (!future.set(TCPStream.this) && future.isCancelled()) {
+                    TCPStream.this.abort();
+                }
+                return true;
+            } else if (relay.relayCommand == RelayType.RELAY_END) {
+                closed_for_reason = relay.getDataByte(0) & 0xff;
+                // no END in return
+                closed = true;
+                fail(new TorException("TCPStream: received END-CELL for reason: " + closed_for_reason));
+                return true;
+            }
+            return false;
+        }
+
+        /** the queue closed, with the stream or the circuit */
+        public void close() {
+            timeout.cancel(false);
+            TorException e = new TorException("TCPStream: closed while waiting for RELAY_CONNECTED");
+            future.setException(e);
+            failReaders(e);
+        }
+
+        /** the exit didn't answer in time */
+        public void run() {
+            fail(new TorException("TCPStream: no answer after " + queue_timeout + " s"));
+        }
+
+        private void fail(TorException e) {
+            timeout.cancel(false);
+            future.setException(e);
+            if (!future.isCancelled()) {
+                LogFactory.getLog(getClass()).warn("TCPStream: Closed:" + TCPStream.this + " due to TorException:" + e.getMessage());
+                circ.reportStreamFailure(TCPStream.this);
+            }
+            failReaders(e);
+            // tells the exit, if it still waits, and leaves the circuit
+            TCPStream.this.abort();
+        }
+
+        /**
+         * the readers of an optimistic stream must not take a failed connect
+         * for an empty answer
+         */
+        private void failReaders(TorException e) {
+            if (qhT2J != null && !established) {
+                qhT2J.fail(new IOException("TCPStream: " + TCPStream.this + " didn't connect, reason " + closed_for_reason, e));
+            }
+        }
     }
 
     public void doSendCell(Cell c) throws IOException {
@@ -232,6 +571,81 @@ public class TCPStream extends CellSink implements Closeable {
     }
 
 
+    /**
+     * takes a cell of the stream's and of the circuit's package window,
+     * waiting for SENDMEs if one of them is closed
+     */
+    void takePackageWindow() throws IOException {
+        packageWindow.take();
+        try {
+            circ.packageWindow.take();
+        } catch (IOException e) {
+            packageWindow.giveBack();
+            throw e;
+        }
+        // the circuit's window stays open when only the stream is closed
+        if (closed) {
+            packageWindow.giveBack();
+            circ.packageWindow.giveBack();
+            throw new IOException("stream " + this + " is closed");
+        }
+    }
+
+    /**
+     * takes a cell of the stream's and of the circuit's package window, if
+     * both are open
+     */
+    boolean tryTakePackageWindow() {
+        if (!packageWindow.tryTake()) {
+            return false;
+        }
+        if (!circ.packageWindow.tryTake()) {
+            packageWindow.giveBack();
+            return false;
+        }
+        return true;
+    }
+
+    /** sends a DATA cell, the package windows have been taken */
+    void sendData(byte[] b, int off, int len) throws IOException {
+        CellRelay cell = circ.getCellPool().acquireRelay(this, RelayType.RELAY_DATA);
+        try {
+            cell.appendData(b, off, len);
+            sendCell(cell);
+        } finally {
+            cell.release();
+        }
+    }
+
+    /**
+     * for readers that must not block
+     * 
+     * @return done when there is something to read or the stream ended,
+     *         failed if the stream isn't connected or carries no data
+     */
+    public ListenableFuture<Void> whenReadable() {
+        if (qhT2J == null) {
+            ValueFuture<Void> retVal = ValueFuture.create();
+            retVal.setException(new IOException("stream " + this + " has no data to read"));
+            return retVal;
+        }
+        return qhT2J.whenReadable();
+    }
+
+    /**
+     * for writers that must not block
+     * 
+     * @return done when a cell can be written without waiting for the package
+     *         windows, failed if the stream or circuit is closed before
+     */
+    public ListenableFuture<Void> whenWritable() {
+        return Futures.chain(packageWindow.whenOpen(), new Function<Void, ListenableFuture<Void>>() {
+            public ListenableFuture<Void> apply(Void from) {
+                return circ.packageWindow.whenOpen();
+            }
+        });
+    }
+
     /** send a stream-layer dummy */
     public void sendKeepAlive() {
         try {
@@ -240,10 +654,30 @@ public class TCPStream extends CellSink implements Closeable {
         }
     }
 
-    /** for application interaction */
+    /**
+     * for application interaction. Waits until what was written has been
+     * sent, as closing the output stream does.
+     */
     public void close() {
+        shutdown(true);
+    }
+
+    /**
+     * closes the stream without waiting for a SENDME, for the connect timeout
+     * and a cancelled connect, which run on the timer or on the circuit's
+     * thread. What the package windows don't take right away is dropped.
+     */
+    void abort() {
+        shutdown(false);
+    }
+
+    private void shutdown(boolean wait) {
         // gracefully close stream
-        close(false);
+        close(false, wait);
+        // drop what the application didn't read
+        if (qhT2J != null) {
+            qhT2J.discard();
+        }
         // remove from circuit
         LogFactory.getLog(getClass()).trace("TCPStream.close(): removing stream " + this);
         circ.streams.remove(new Integer(ID));
@@ -257,9 +691,30 @@ public class TCPStream extends CellSink implements Closeable {
      *            END-CELLs and stuff
      */
     public void close(boolean force) {
+        close(force, true);
+    }
+
+    /**
+     * @param wait
+     *            wait for the package windows to send what is still
+     *            buffered, or drop it if they are closed
+     */
+    private void close(boolean force, boolean wait) {
         LogFactory.getLog(getClass()).debug("TCPStream.close(): closing stream " + this);
         // if stream is not closed, send a RELAY-END-CELL
         if (!(closed || force)) {
+            // what is still buffered goes out before the END
+            if (outputStream != null) {
+                if (wait) {
+                    try {
+                        outputStream.flush();
+                    } catch (IOException e) {
+                        LogFactory.getLog(getClass()).warn("TCPStream: closing " + this + " lost unsent data: " + e.getMessage());
+                    }
+                } else {
+                    outputStream.flushNow();
+                }
+            }
             try {
                 CellRelay cell = new CellRelay(this, RelayType.RELAY_END);
                 cell.appendData(new byte[]{6});
@@ -281,6 +736,8 @@ public class TCPStream extends CellSink implements Closeable {
         }
         // close queue (also removes handlers)
         queue.close();
+        // fail writers waiting for a SENDME
+        packageWindow.close();
         // remove from circuit
         circ.streams.remove(new Integer(ID));
     }
@@ -291,7 +748,7 @@ public class TCPStream extends CellSink implements Closeable {
      * @return a standard Java-Inputstream
      */
     public InputStream getInputStream() {
-        return qhT2J.sin;
+        return qhT2J.getInputStream();
     }
 
     /**
@@ -303,6 +760,16 @@ public class TCPStream extends CellSink implements Closeable {
         return outputStream;
     }
 
+    /**
+     * use this to drive the stream without blocking, together with
+     * whenReadable() and whenWritable(). Don't mix it with the streams.
+     * 
+     * @return a channel that reads and writes what is available right now
+     */
+    public TCPStreamChannel getChannel() {
+        return channel;
+    }
+
     /** used for proxy and UI */
     public String getRoute() {
         StringBuffer sb = new StringBuffer();
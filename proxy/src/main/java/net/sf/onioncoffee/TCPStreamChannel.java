@@ -0,0 +1,105 @@
+/**
+ * OnionCoffee - Anonymous Communication through TOR Network
+ * Copyright (C) 2005-2007 RWTH Aachen University, Informatik IV
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA
+ */
+package net.sf.onioncoffee;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * a non-blocking channel on a stream. read() takes what has been received,
+ * write() sends as many DATA cells as the package windows allow, and both
+ * return 0 if there is nothing to do right now. A caller then waits for
+ * whenReadable() or whenWritable() instead of holding on to a thread, so a
+ * few threads can drive many streams.
+ *
+ * Every write goes out right away, a partly filled cell included. There is
+ * no buffering and no flush as with the output stream of the stream.
+ *
+ * @version unstable
+ */
+public class TCPStreamChannel implements ByteChannel {
+    private final TCPStream stream;
+    private final byte[] cell = new byte[CellRelay.RELAY_DATA_SIZE];
+    private volatile boolean open = true;
+
+    TCPStreamChannel(TCPStream stream) {
+        this.stream = stream;
+    }
+
+    /**
+     * @return the number of bytes read, 0 if there are none yet or -1 at the
+     *         end of the stream
+     */
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        checkOpen();
+        return stream.qhT2J.poll(dst);
+    }
+
+    /**
+     * @return the number of bytes sent, 0 if a package window is closed
+     */
+    public synchronized int write(ByteBuffer src) throws IOException {
+        checkOpen();
+        if (stream.closed) {
+            throw new IOException("stream " + stream + " is closed");
+        }
+        int retVal = 0;
+        while (src.hasRemaining() && stream.tryTakePackageWindow()) {
+            int n = Math.min(src.remaining(), CellRelay.RELAY_DATA_SIZE);
+            if (src.hasArray()) {
+                stream.sendData(src.array(), src.arrayOffset() + src.position(), n);
+                src.position(src.position() + n);
+            } else {
+                src.get(cell, 0, n);
+                stream.sendData(cell, 0, n);
+            }
+            retVal += n;
+        }
+        return retVal;
+    }
+
+    /** @see TCPStream#whenReadable() */
+    public ListenableFuture<Void> whenReadable() {
+        return stream.whenReadable();
+    }
+
+    /** @see TCPStream#whenWritable() */
+    public ListenableFuture<Void> whenWritable() {
+        return stream.whenWritable();
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    /** closes the stream */
+    public void close() {
+        open = false;
+        stream.close();
+    }
+
+    private void checkOpen() throws ClosedChannelException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+}
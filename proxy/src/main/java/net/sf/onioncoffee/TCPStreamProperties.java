@@ -39,6 +39,15 @@ public class TCPStreamProperties {
     // allow entry node to be non Guard (dirv2)
     public boolean allowNonGuardEntry = true; 
     public boolean exitPolicyRequired = true;
+    // use CREATE_FAST instead of a full handshake with the first hop, only
+    // done if the connection verified the first hop's CERTS cell
+    public boolean createFast = Config.createFast;
+    // milliseconds small writes are held back to fill a DATA cell before they
+    // are sent without a flush, 0 sends every write right away
+    public int flushDelayMillis = Config.streamFlushDelay;
+    // hand out the stream before the exit connected, the first writes go
+    // right behind the BEGIN instead of a round trip later
+    public boolean optimisticData = Config.optimisticData;
 
     private boolean resolved = false; 
 
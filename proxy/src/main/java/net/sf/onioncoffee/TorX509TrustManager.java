@@ -36,6 +36,8 @@ class TorX509TrustManager implements X509TrustManager {
     }
 
     public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+        // accepted as is, the router proves its identity with the CERTS
+        // cell, see ServerConnection.onCerts()
 //        if (chain.length != 2) {
 //            throw new CertificateException("Certificate Chain dataLength != 2");
 //        }
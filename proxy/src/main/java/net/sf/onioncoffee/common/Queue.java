@@ -18,9 +18,14 @@
 package net.sf.onioncoffee.common;
 
 import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Vector;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import net.sf.onioncoffee.Cell;
 import net.sf.onioncoffee.CellRelay;
@@ -30,16 +35,54 @@ import net.sf.onioncoffee.CellRelay.RelayType;
 /**
  * a helper class for queueing data (FIFO)
  * 
+ * Threads waiting for a reply register a waiter for the type of cell they
+ * expect. An arriving cell is handed to the first waiter that accepts it and
+ * only that waiter's condition is signalled. Cells nobody waits for stay
+ * queued, so a padding or SENDME cell in between doesn't disturb a circuit
+ * build. DESTROY, relay END and TRUNCATED cells are accepted by every waiter,
+ * so the build fails as soon as the other side gives up.
+ * 
  * @author Lexi Pimenidis
  * @version unstable
  */
 public class Queue {
-    final int WAIT = 100;
     volatile public boolean closed;
     public int timeout = 1000; // timeout internally represented in ms
-    private final java.util.Queue<Cell> queue = new ConcurrentLinkedQueue<Cell>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LinkedList<Cell> queue = new LinkedList<Cell>();
+    private final List<Waiter> waiters = new LinkedList<Waiter>();
     private final Vector<QueueHandler> handler = new Vector<QueueHandler>();
 
+    /**
+     * a thread waiting for a cell of a certain type, or for any cell if both
+     * types are null
+     */
+    private class Waiter {
+        final CellType type;
+        final RelayType relayType;
+        final Condition arrived = lock.newCondition();
+        Cell cell;
+
+        Waiter(CellType type, RelayType relayType) {
+            this.type = type;
+            this.relayType = relayType;
+        }
+
+        boolean accepts(Cell cell) {
+            if (type == null || cell.command == CellType.CELL_DESTROY) {
+                return true;
+            }
+            if (cell.command != type) {
+                return false;
+            }
+            if (relayType == null) {
+                return true;
+            }
+            RelayType command = ((CellRelay) cell).relayCommand;
+            return command == relayType || command == RelayType.RELAY_END || command == RelayType.RELAY_TRUNCATED;
+        }
+    }
+
     /**
      * init class
      * 
@@ -55,52 +98,81 @@ public class Queue {
         this(1000);
     }
 
-    public synchronized void addHandler(QueueHandler qh) {
+    public void addHandler(QueueHandler qh) {
         handler.add(qh);
     }
 
-    public synchronized boolean removeHandler(QueueHandler qh) {
+    public boolean removeHandler(QueueHandler qh) {
         return handler.remove(qh);
     }
 
     /** add a cell to the queue */
-    public synchronized void add(Cell cell) {
-        // first check if there are handlers installed 
-        for (QueueHandler qh : handler) {
-            try {
-                if (qh.handleCell(cell)) {
+    public void add(Cell cell) {
+        lock.lock();
+        try {
+            // first check if there are handlers installed 
+            for (QueueHandler qh : handler) {
+                try {
+                    if (qh.handleCell(cell)) {
+                        // consumed by the handler
+                        cell.release();
+                        return;
+                    }
+                } catch (TorException te) {
+                }
+            }
+
+            // then if somebody is waiting for it
+            for (Waiter waiter : waiters) {
+                if (waiter.cell == null && waiter.accepts(cell)) {
+                    waiter.cell = cell;
+                    waiter.arrived.signal();
                     return;
                 }
-            } catch (TorException te) {
             }
-        }
 
-        // otherwise add to queue 
-        queue.offer(cell);
-        this.notify();
+            // otherwise add to queue 
+            queue.add(cell);
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
      * close the queue and remove all pending messages
      * @throws IOException 
      */
-    public synchronized void close() {
-        closed = true;
-        for (int i = 0; i < handler.size(); ++i) {
-            QueueHandler qh = handler.elementAt(i);
-            try {
-                qh.close();
-            } catch (IOException e) {
-                
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            for (int i = 0; i < handler.size(); ++i) {
+                QueueHandler qh = handler.elementAt(i);
+                try {
+                    qh.close();
+                } catch (IOException e) {
+                    
+                }
+            }
+            for (Cell cell; null != (cell = queue.poll());) {
+                cell.release();
+            }
+            for (Waiter waiter : waiters) {
+                waiter.arrived.signal();
             }
+        } finally {
+            lock.unlock();
         }
-        queue.clear();
-        this.notify();
     }
 
     /** determines whether the queue is empty */
     boolean isEmpty() {
-        return closed || queue.isEmpty();
+        lock.lock();
+        try {
+            return closed || queue.isEmpty();
+        } finally {
+            lock.unlock();
+        }
     }
 
     public Cell get() {
@@ -114,23 +186,49 @@ public class Queue {
      *            determines what will happen, if no data is in queue.
      * @return a Cell or null
      */
-    public synchronized Cell get(int timeout) {
-        boolean forever = false;
-        if (timeout == -1) {
-            forever = true;
-        }
+    public Cell get(int timeout) {
+        return get(new Waiter(null, null), timeout);
+    }
 
-        Cell retVal = null;
-        for (int retries = timeout / WAIT; forever || (retries > 0) || !queue.isEmpty(); --retries) {
-            if (closed || null != (retVal = queue.poll())) {
-                break;
+    /**
+     * the first queued cell the waiter accepts, or the first one arriving
+     * within the timeout
+     * 
+     * @param timeout
+     *            in ms, -1 waits forever
+     * @return a Cell or null, if the queue was closed or nothing came
+     */
+    private Cell get(Waiter waiter, int timeout) {
+        lock.lock();
+        try {
+            for (Iterator<Cell> itr = queue.iterator(); itr.hasNext();) {
+                Cell cell = itr.next();
+                if (waiter.accepts(cell)) {
+                    itr.remove();
+                    return cell;
+                }
             }
+            waiters.add(waiter);
             try {
-                wait(WAIT);
+                long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+                while (waiter.cell == null && !closed) {
+                    if (timeout == -1) {
+                        waiter.arrived.await();
+                    } else if (nanos > 0) {
+                        nanos = waiter.arrived.awaitNanos(nanos);
+                    } else {
+                        break;
+                    }
+                }
             } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                waiters.remove(waiter);
             }
+            return waiter.cell;
+        } finally {
+            lock.unlock();
         }
-        return retVal;
     }
 
     /**
@@ -139,16 +237,24 @@ public class Queue {
      * @throws TimeoutException
      */
     public Cell receiveCell(CellType type) throws IOException, TorException {
+        return receive(new Waiter(type, null));
+    }
+
+    private Cell receive(Waiter waiter) throws TorException {
         if (closed) {
             throw new TorException("Attempted to receive cell from closed queue");
         }
-        Cell cell = get();
+        Cell cell = get(waiter, timeout);
 
         if (cell == null) {
+            if (closed) {
+                throw new TorException("Queue closed while waiting for a cell of type " + waiter.type);
+            }
             throw new TorNoAnswerException("Queue.receiveCell: no answer after " + this.timeout / 1000 + " s", this.timeout);
         }
-        if (cell.command != type) {
-            throw new TorException("Queue.receiveCell: expected cell of type " + type + " received type " + type);
+        if (cell.command != waiter.type) {
+            cell.release();
+            throw new TorException("Queue.receiveCell: expected cell of type " + waiter.type + " received type " + cell.command);
         }
         return cell;
     }
@@ -159,13 +265,16 @@ public class Queue {
      * @throws TimeoutException
      */
     public CellRelay receiveRelayCell(RelayType type) throws IOException, TorException {
-        CellRelay relay = (CellRelay) receiveCell(CellType.CELL_RELAY);
+        CellRelay relay = (CellRelay) receive(new Waiter(CellType.CELL_RELAY, type));
         if (relay.relayCommand != type) {
-            if ((relay.relayCommand == RelayType.RELAY_END) && (relay.data != null)) {
-                throw new TorException("Queue.receiveRelayCell: expected relay-cell of type " + type + ", received END-CELL for reason: " + relay.payload[0]);
+            String message;
+            if ((relay.relayCommand == RelayType.RELAY_END) && (relay.dataLength > 0)) {
+                message = "Queue.receiveRelayCell: expected relay-cell of type " + type + ", received END-CELL for reason: " + relay.getDataByte(0);
             } else {
-                throw new TorException("Queue.receiveRelayCell: expected relay-cell, received type");
+                message = "Queue.receiveRelayCell: expected relay-cell of type " + type + ", received type " + relay.relayCommand;
             }
+            relay.release();
+            throw new TorException(message);
         }
         return relay;
     }
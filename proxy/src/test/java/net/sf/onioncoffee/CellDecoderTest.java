@@ -0,0 +1,124 @@
+package net.sf.onioncoffee;
+
+import static org.junit.Assert.*;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.sf.onioncoffee.Cell.CellType;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.filterchain.IoFilter.NextFilter;
+import org.apache.mina.core.service.DefaultTransportMetadata;
+import org.apache.mina.core.session.DummySession;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.core.session.IoSessionConfig;
+import org.apache.mina.filter.codec.AbstractProtocolDecoderOutput;
+import org.junit.Test;
+
+public class CellDecoderTest {
+
+    private static byte[] fixedCell(int circuitId, CellType command, int fill) {
+        byte[] retVal = new byte[Cell.CELL_TOTAL_SIZE];
+        retVal[0] = (byte) (circuitId >> 8);
+        retVal[1] = (byte) circuitId;
+        retVal[2] = command.value;
+        for (int i = Cell.CELL_PAYLOAD_POS; i < retVal.length; ++i) {
+            retVal[i] = (byte) (fill + i);
+        }
+        return retVal;
+    }
+
+    /**
+     * feeds two fixed cells and a VERSIONS cell in small, unaligned chunks
+     */
+    @Test
+    public void testPartialReads() throws Exception {
+        ByteBuffer stream = ByteBuffer.allocate(2 * Cell.CELL_TOTAL_SIZE + 9);
+        stream.put(fixedCell(0x1234, CellType.CELL_CREATED, 1));
+        stream.put(new byte[] { 0, 0, 7, 0, 4, 0, 2, 0, 3 });
+        stream.put(fixedCell(0x8001, CellType.CELL_DESTROY, 2));
+        stream.flip();
+
+        DummySession session = new DummySession();
+        List<Object> decoded = decode(session, stream);
+        assertEquals(3, session.getAttribute(CellDecoder.LINK_VERSION));
+        assertEquals(3, decoded.size());
+        Cell created = (Cell) decoded.get(0);
+        assertEquals(CellType.CELL_CREATED, created.command);
+        assertEquals(0x1234, created.circuitId);
+        assertArrayEquals(fixedCell(0x1234, CellType.CELL_CREATED, 1), encode(created));
+
+        Cell versions = (Cell) decoded.get(1);
+        assertEquals(CellType.CELL_VERSIONS, versions.command);
+        assertArrayEquals(new byte[] { 0, 2, 0, 3 }, versions.extractPayload());
+
+        Cell destroy = (Cell) decoded.get(2);
+        assertEquals(CellType.CELL_DESTROY, destroy.command);
+        assertEquals(0x8001, destroy.circuitId);
+    }
+
+    /**
+     * link protocol 4 switches to 4 byte circuit ids right after the VERSIONS
+     * cell
+     */
+    @Test
+    public void testLinkVersion4() throws Exception {
+        ByteBuffer stream = ByteBuffer.allocate(9 + Cell.CELL_TOTAL_SIZE_V4);
+        stream.put(new byte[] { 0, 0, 7, 0, 4, 0, 4, 0, 5 });
+        stream.putInt(0x80000001);
+        stream.put(CellType.CELL_DESTROY.value);
+        stream.position(stream.limit());
+        stream.flip();
+
+        DummySession session = new DummySession();
+        List<Object> decoded = decode(session, stream);
+        assertEquals(4, session.getAttribute(CellDecoder.LINK_VERSION));
+        assertEquals(2, decoded.size());
+        Cell destroy = (Cell) decoded.get(1);
+        assertEquals(CellType.CELL_DESTROY, destroy.command);
+        assertEquals(0x80000001, destroy.circuitId);
+
+        ByteBuffer encoded = ByteBuffer.allocate(destroy.getEncodedSize(Cell.CELL_CIRCID_SIZE_V4));
+        destroy.encodeTo(encoded, Cell.CELL_CIRCID_SIZE_V4);
+        assertArrayEquals(stream.array(), concat(new byte[] { 0, 0, 7, 0, 4, 0, 4, 0, 5 }, encoded.array()));
+    }
+
+    /**
+     * feeds the stream to a decoder in chunks of 100 bytes
+     */
+    private static List<Object> decode(DummySession session, ByteBuffer stream) throws Exception {
+        List<Object> retVal = new ArrayList<Object>();
+        AbstractProtocolDecoderOutput out = new AbstractProtocolDecoderOutput() {
+            public void flush(NextFilter nextFilter, IoSession session) {
+            }
+        };
+        // like a TCP socket, to keep partial cells
+        session.setTransportMetadata(new DefaultTransportMetadata("mina", "dummy", false, true, SocketAddress.class, IoSessionConfig.class, Object.class));
+        CellDecoder decoder = new CellDecoder(new CellPool(4, true));
+        while (stream.hasRemaining()) {
+            byte[] chunk = new byte[Math.min(100, stream.remaining())];
+            stream.get(chunk);
+            decoder.decode(session, IoBuffer.wrap(chunk), out);
+            while (!out.getMessageQueue().isEmpty()) {
+                retVal.add(out.getMessageQueue().poll());
+            }
+        }
+        return retVal;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] retVal = new byte[a.length + b.length];
+        System.arraycopy(a, 0, retVal, 0, a.length);
+        System.arraycopy(b, 0, retVal, a.length, b.length);
+        return retVal;
+    }
+
+    private static byte[] encode(Cell cell) {
+        byte[] retVal = new byte[Cell.CELL_TOTAL_SIZE];
+        cell.encodeTo(ByteBuffer.wrap(retVal));
+        return retVal;
+    }
+}
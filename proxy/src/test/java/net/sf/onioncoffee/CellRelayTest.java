@@ -0,0 +1,77 @@
+package net.sf.onioncoffee;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import net.sf.onioncoffee.CellRelay.RelayType;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.filterchain.IoFilter.NextFilter;
+import org.apache.mina.core.session.DummySession;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.codec.AbstractProtocolDecoderOutput;
+import org.junit.Test;
+
+public class CellRelayTest {
+
+    /**
+     * the node at the other end of the circuit, which receives with our
+     * forward keys and sends with our backward keys
+     */
+    private static CircuitNode mirror(byte[] k) {
+        byte[] m = new byte[72];
+        System.arraycopy(k, 20, m, 0, 20);
+        System.arraycopy(k, 0, m, 20, 20);
+        System.arraycopy(k, 56, m, 40, 16);
+        System.arraycopy(k, 40, m, 56, 16);
+        return new CircuitNode(null, m, 0);
+    }
+
+    /**
+     * a cell sealed with all three layers is decrypted and recognized with the
+     * keys of the other end, several cells in a row to check that the key
+     * streams and digests stay in step. The cells are received the way
+     * ServerConnection does it, decoded by CellDecoder and decrypted on their
+     * circuit.
+     */
+    @Test
+    public void testLayeredRoundTrip() throws Exception {
+        Random random = new Random(7);
+        CircuitNode[] route = new CircuitNode[3];
+        CircuitNode[] mirrored = new CircuitNode[3];
+        for (int i = 0; i < route.length; ++i) {
+            byte[] k = new byte[72];
+            random.nextBytes(k);
+            route[i] = new CircuitNode(null, k, 0);
+            mirrored[i] = mirror(k);
+        }
+        Circuit circuit = new Circuit(null, 0x8001, route);
+        Circuit other = new Circuit(null, 0x8001, mirrored);
+        CellDecoder decoder = new CellDecoder(new CellPool(4, false));
+        DummySession session = new DummySession();
+        AbstractProtocolDecoderOutput out = new AbstractProtocolDecoderOutput() {
+            public void flush(NextFilter nextFilter, IoSession session) {
+            }
+        };
+
+        for (int n = 0; n < 5; ++n) {
+            byte[] data = new byte[100 + n];
+            random.nextBytes(data);
+            CellRelay relay = new CellRelay(circuit, RelayType.RELAY_DATA);
+            relay.setStreamID(42);
+            relay.appendData(data);
+            byte[] encoded = relay.toByteArray();
+
+            assertTrue(decoder.doDecode(session, IoBuffer.wrap(encoded), out));
+            CellRelay received = (CellRelay) out.getMessageQueue().poll();
+            assertEquals(0x8001, received.circuitId);
+            received.setCircuit(other);
+            received.decrypt();
+            assertEquals(RelayType.RELAY_DATA, received.relayCommand);
+            assertEquals(42, received.getStreamID());
+            assertArrayEquals(data, received.extractData());
+            received.release();
+        }
+    }
+}
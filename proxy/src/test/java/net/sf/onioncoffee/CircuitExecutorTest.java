@@ -0,0 +1,49 @@
+package net.sf.onioncoffee;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class CircuitExecutorTest {
+
+    /**
+     * the tasks of each circuit run in the order they were handed in
+     */
+    @Test
+    public void testOrderPerCircuit() throws Exception {
+        CircuitExecutor executor = new CircuitExecutor(4);
+        final int circuits = 16;
+        final int tasks = 200;
+        final List<List<Integer>> seen = new ArrayList<List<Integer>>();
+        for (int c = 0; c < circuits; ++c) {
+            seen.add(new ArrayList<Integer>());
+        }
+        final CountDownLatch done = new CountDownLatch(circuits * tasks);
+        for (int i = 0; i < tasks; ++i) {
+            for (int c = 0; c < circuits; ++c) {
+                final int circuit = c;
+                final int task = i;
+                executor.execute(1, 0x8000 | c, new Runnable() {
+                    public void run() {
+                        // only ever touched by the shard of the circuit
+                        seen.get(circuit).add(task);
+                        done.countDown();
+                    }
+                });
+            }
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        executor.shutdown();
+        for (List<Integer> order : seen) {
+            assertEquals(tasks, order.size());
+            for (int i = 0; i < tasks; ++i) {
+                assertEquals(i, order.get(i).intValue());
+            }
+        }
+    }
+}
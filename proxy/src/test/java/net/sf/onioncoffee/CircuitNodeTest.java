@@ -0,0 +1,67 @@
+package net.sf.onioncoffee;
+
+import static org.junit.Assert.*;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import net.sf.onioncoffee.common.TorException;
+
+import org.junit.Test;
+
+public class CircuitNodeTest {
+
+    /**
+     * KDF-TOR is SHA1(K0 | [i]) for i = 0..4
+     */
+    @Test
+    public void testDeriveKeys() throws Exception {
+        byte[] k0 = new byte[40];
+        new Random(5).nextBytes(k0);
+        byte[] k = CircuitNode.deriveKeys(k0);
+        assertEquals(100, k.length);
+        for (int i = 0; i < 5; ++i) {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            sha1.update(k0);
+            sha1.update((byte) i);
+            assertArrayEquals(sha1.digest(), Arrays.copyOfRange(k, 20 * i, 20 * i + 20));
+        }
+    }
+
+    /**
+     * the node from a CREATED_FAST reply uses the keys after KH, and a wrong
+     * KH is refused
+     */
+    @Test
+    public void testCreateFast() throws Exception {
+        Random random = new Random(6);
+        byte[] x = new byte[20];
+        random.nextBytes(x);
+        byte[] created = new byte[40];
+        random.nextBytes(created);
+        byte[] k0 = new byte[40];
+        System.arraycopy(x, 0, k0, 0, 20);
+        System.arraycopy(created, 0, k0, 20, 20);
+        byte[] k = CircuitNode.deriveKeys(k0);
+        System.arraycopy(k, 0, created, 20, 20);
+
+        CircuitNode node = CircuitNode.createFast(null, x, created);
+        CircuitNode expected = new CircuitNode(null, k, 20);
+        byte[] data = new byte[64];
+        assertArrayEquals(expected.calcForwardDigest(data), node.calcForwardDigest(data));
+        assertArrayEquals(expected.calcBackwardDigest(data), node.calcBackwardDigest(data));
+        byte[] encrypted = data.clone();
+        node.encrypt(encrypted);
+        expected.encrypt(data);
+        assertArrayEquals(data, encrypted);
+
+        created[25] ^= 1;
+        try {
+            CircuitNode.createFast(null, x, created);
+            fail("wrong KH accepted");
+        } catch (TorException e) {
+            // expected
+        }
+    }
+}
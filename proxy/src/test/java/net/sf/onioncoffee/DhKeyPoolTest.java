@@ -0,0 +1,40 @@
+package net.sf.onioncoffee;
+
+import static org.junit.Assert.*;
+
+import java.math.BigInteger;
+
+import org.junit.Test;
+
+public class DhKeyPoolTest {
+
+    private static void assertValid(DhKeyPool.DhKey key) {
+        BigInteger gx = CircuitNode.DH_G.modPow(key.x, CircuitNode.DH_P);
+        assertArrayEquals(CircuitNode.BigIntegerTo128Bytes(gx), key.gx);
+    }
+
+    /**
+     * the pool is filled in the background and hands out distinct, valid keys
+     */
+    @Test
+    public void testRefill() throws Exception {
+        DhKeyPool pool = new DhKeyPool(4);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (pool.size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, pool.size());
+        DhKeyPool.DhKey first = pool.take();
+        DhKeyPool.DhKey second = pool.take();
+        assertValid(first);
+        assertValid(second);
+        assertFalse(first.x.equals(second.x));
+    }
+
+    @Test
+    public void testDisabled() {
+        DhKeyPool pool = new DhKeyPool(0);
+        assertValid(pool.take());
+        assertEquals(0, pool.size());
+    }
+}
@@ -0,0 +1,41 @@
+package net.sf.onioncoffee;
+
+import static org.junit.Assert.*;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import net.sf.onioncoffee.Cell.CellType;
+
+import org.junit.Test;
+
+public class FlightRecorderTest {
+
+    /**
+     * only the most recent events survive once the ring wrapped around
+     */
+    @Test
+    public void testWrapAround() {
+        FlightRecorder recorder = new FlightRecorder(3);
+        for (int i = 1; i <= 6; ++i) {
+            recorder.record(FlightRecorder.EVENT_SENT, 7, new Cell(null, i, CellType.CELL_CREATE));
+        }
+        recorder.record(FlightRecorder.EVENT_DROPPED, 7, new Cell(null, 0x80000001, CellType.CELL_DESTROY));
+
+        StringWriter out = new StringWriter();
+        recorder.dump(new PrintWriter(out));
+        String[] lines = out.toString().split("\n");
+        assertEquals(4, lines.length);
+        assertTrue(lines[0], lines[0].matches("3 -?\\d+us sent conn=7 circ=4 create len=509"));
+        assertTrue(lines[3], lines[3].matches("6 0us dropped conn=7 circ=2147483649 destroy len=509"));
+    }
+
+    @Test
+    public void testDisabled() {
+        FlightRecorder recorder = new FlightRecorder(0);
+        recorder.record(FlightRecorder.EVENT_RECEIVED, 1, new Cell(null, 1, CellType.CELL_PADDING));
+        StringWriter out = new StringWriter();
+        recorder.dump(new PrintWriter(out));
+        assertEquals("", out.toString());
+    }
+}
@@ -0,0 +1,293 @@
+package net.sf.onioncoffee;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sf.onioncoffee.CellRelay.RelayType;
+import net.sf.onioncoffee.common.Queue;
+
+import org.junit.Test;
+
+public class FlowControlTest {
+    private final List<Integer> sendmes = new ArrayList<Integer>();
+    private final AtomicInteger sent = new AtomicInteger();
+    private final CellPool pool = new CellPool(16, false);
+    private final Circuit circuit = new Circuit(null, 1, new CircuitNode[] { new CircuitNode(null, new byte[72], 0) }) {
+        @Override
+        protected void doSendCell(Cell c) {
+            CellRelay relay = (CellRelay) c;
+            if (relay.relayCommand == RelayType.RELAY_SENDME) {
+                // the id of the stream, 0 for the circuit
+                sendmes.add(relay.getStreamID());
+            } else if (relay.relayCommand == RelayType.RELAY_DATA) {
+                sent.incrementAndGet();
+            }
+        }
+
+        @Override
+        CellPool getCellPool() {
+            return pool;
+        }
+    };
+
+    private TCPStream stream() {
+        circuit.qhFC = new QueueFlowControlHandler(circuit, 1000, 100);
+        TCPStream stream = new TCPStream(circuit);
+        stream.ID = 1;
+        stream.queue = new Queue();
+        stream.qhFC = new QueueFlowControlHandler(stream, 500, 50);
+        stream.queue.addHandler(stream.qhFC);
+        stream.qhT2J = new QueueTor2JavaHandler(stream);
+        stream.queue.addHandler(stream.qhT2J);
+        circuit.streams.put(stream.ID, stream);
+        return stream;
+    }
+
+    private void receive(TCPStream stream, int cells) {
+        for (int i = 0; i < cells; ++i) {
+            CellRelay relay = new CellRelay(stream, RelayType.RELAY_DATA);
+            relay.appendData(new byte[CellRelay.RELAY_DATA_SIZE]);
+            circuit.onCell(relay);
+        }
+    }
+
+    private static int readAll(InputStream in) throws Exception {
+        byte[] b = new byte[4096];
+        int retVal = 0;
+        while (in.available() > 0) {
+            retVal += in.read(b);
+        }
+        return retVal;
+    }
+
+    /**
+     * the stream acknowledges nothing while the application doesn't read,
+     * and all of it when it does
+     */
+    @Test
+    public void testSlowReader() throws Exception {
+        TCPStream stream = stream();
+        receive(stream, 120);
+        assertEquals(0, Collections.frequency(sendmes, 1));
+        // the circuit doesn't wait for the reader
+        assertEquals(1, Collections.frequency(sendmes, 0));
+
+        assertEquals(120 * CellRelay.RELAY_DATA_SIZE, readAll(stream.getInputStream()));
+        assertEquals(2, Collections.frequency(sendmes, 1));
+        assertEquals(1, Collections.frequency(sendmes, 0));
+    }
+
+    /**
+     * a stream nobody reads doesn't hold back the circuit's SENDMEs for the
+     * other streams
+     */
+    @Test
+    public void testIdleStream() throws Exception {
+        TCPStream idle = stream();
+        TCPStream active = new TCPStream(circuit);
+        active.ID = 2;
+        active.queue = new Queue();
+        active.qhFC = new QueueFlowControlHandler(active, 500, 50);
+        active.queue.addHandler(active.qhFC);
+        active.qhT2J = new QueueTor2JavaHandler(active);
+        active.queue.addHandler(active.qhT2J);
+        circuit.streams.put(active.ID, active);
+
+        receive(idle, 20);
+        for (int i = 0; i < 49; ++i) {
+            receive(active, 20);
+            readAll(active.getInputStream());
+        }
+        // 1000 cells on the circuit, a SENDME for every 100
+        assertEquals(10, Collections.frequency(sendmes, 0));
+        assertEquals(0, Collections.frequency(sendmes, 1));
+        assertEquals(19, Collections.frequency(sendmes, 2));
+    }
+
+    /**
+     * a reader that keeps up gets SENDMEs as the cells arrive
+     */
+    @Test
+    public void testFastReader() throws Exception {
+        TCPStream stream = stream();
+        for (int i = 0; i < 12; ++i) {
+            receive(stream, 10);
+            readAll(stream.getInputStream());
+        }
+        assertEquals(2, Collections.frequency(sendmes, 1));
+        assertEquals(1, Collections.frequency(sendmes, 0));
+    }
+
+    /**
+     * closing the input stream without reading drops what was received
+     */
+    @Test
+    public void testDiscard() throws Exception {
+        TCPStream stream = stream();
+        receive(stream, 20);
+        stream.getInputStream().close();
+        assertEquals(0, stream.qhT2J.unread());
+        receive(stream, 1);
+        assertEquals(0, stream.qhT2J.unread());
+    }
+
+    /**
+     * a writer stops at the end of the stream's package window and goes on
+     * when the exit sends a SENDME
+     */
+    @Test
+    public void testPackageWindow() throws Exception {
+        final TCPStream stream = stream();
+        final OutputStream out = stream.new TCPStreamOutputStream();
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    out.write(new byte[501 * CellRelay.RELAY_DATA_SIZE]);
+                } catch (IOException e) {
+                }
+            }
+        };
+        writer.start();
+        for (int i = 0; i < 500 && (sent.get() < 500 || writer.getState() != Thread.State.WAITING); ++i) {
+            Thread.sleep(10);
+        }
+        assertEquals(500, sent.get());
+        assertEquals(Thread.State.WAITING, writer.getState());
+        Future<Void> writable = stream.whenWritable();
+        assertFalse(writable.isDone());
+
+        circuit.onCell(new CellRelay(stream, RelayType.RELAY_SENDME));
+        writer.join(5000);
+        assertEquals(501, sent.get());
+        assertTrue(writable.isDone());
+        assertEquals(49, stream.packageWindow.get());
+        assertEquals(1000 - 501, circuit.packageWindow.get());
+    }
+
+    /**
+     * small writes share cells, the rest goes out on flush()
+     */
+    @Test
+    public void testCoalescing() throws Exception {
+        OutputStream out = stream().new TCPStreamOutputStream();
+        for (int i = 0; i < 100; ++i) {
+            out.write(new byte[10]);
+        }
+        out.write('x');
+        assertEquals(2, sent.get());
+        out.flush();
+        assertEquals(3, sent.get());
+        out.flush();
+        assertEquals(3, sent.get());
+    }
+
+    /**
+     * a partly filled cell is sent by the timer if nobody flushes
+     */
+    @Test
+    public void testFlushTimer() throws Exception {
+        OutputStream out = stream().new TCPStreamOutputStream();
+        out.write(new byte[10]);
+        for (int i = 0; i < 100 && sent.get() == 0; ++i) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, sent.get());
+    }
+
+    /**
+     * a write after a failed send fails the same way
+     */
+    @Test
+    public void testWriteAfterFailedSend() throws Exception {
+        TCPStream stream = stream();
+        OutputStream out = stream.new TCPStreamOutputStream();
+        out.write(new byte[CellRelay.RELAY_DATA_SIZE - 1]);
+        stream.packageWindow.close();
+        for (int i = 0; i < 2; ++i) {
+            try {
+                out.write('x');
+                fail();
+            } catch (IOException e) {
+            }
+        }
+        assertEquals(0, sent.get());
+    }
+
+    /**
+     * closing a stream waits for a writer that is blocked on the package
+     * window, and sends what it wrote before the END
+     */
+    @Test
+    public void testCloseBlockedWriter() throws Exception {
+        final TCPStream stream = stream();
+        blockedWriter(stream);
+        Thread closer = new Thread() {
+            @Override
+            public void run() {
+                stream.close();
+            }
+        };
+        closer.start();
+        closer.join(200);
+        assertTrue(closer.isAlive());
+
+        circuit.onCell(new CellRelay(stream, RelayType.RELAY_SENDME));
+        closer.join(2000);
+        assertFalse(closer.isAlive());
+        assertEquals(502, sent.get());
+    }
+
+    /**
+     * aborting a stream doesn't wait for a writer that is blocked on the
+     * package window
+     */
+    @Test
+    public void testAbortBlockedWriter() throws Exception {
+        final TCPStream stream = stream();
+        Thread writer = blockedWriter(stream);
+        Thread aborter = new Thread() {
+            @Override
+            public void run() {
+                stream.abort();
+            }
+        };
+        aborter.start();
+        aborter.join(2000);
+        assertFalse(aborter.isAlive());
+        writer.join(2000);
+        assertFalse(writer.isAlive());
+        assertEquals(500, sent.get());
+    }
+
+    /**
+     * starts a writer that sends 500 cells and waits for a SENDME to send the
+     * rest of a cell and a half
+     */
+    private Thread blockedWriter(final TCPStream stream) throws Exception {
+        stream.outputStream = stream.new TCPStreamOutputStream();
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    stream.getOutputStream().write(new byte[501 * CellRelay.RELAY_DATA_SIZE + 10]);
+                } catch (IOException e) {
+                }
+            }
+        };
+        writer.start();
+        for (int i = 0; i < 500 && (sent.get() < 500 || writer.getState() != Thread.State.WAITING); ++i) {
+            Thread.sleep(10);
+        }
+        assertEquals(Thread.State.WAITING, writer.getState());
+        return writer;
+    }
+}
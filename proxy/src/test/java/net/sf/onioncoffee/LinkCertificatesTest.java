@@ -0,0 +1,103 @@
+package net.sf.onioncoffee;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.RSAPublicKey;
+
+import net.sf.onioncoffee.common.Encryption;
+
+import org.junit.Test;
+
+import com.google.common.io.Resources;
+
+public class LinkCertificatesTest {
+    private final byte[] link = certificate("link.der");
+    private final byte[] identity = certificate("identity.der");
+    private final X509Certificate tls = parse(link);
+    private final byte[] fingerprint = Encryption.getHash(Encryption.getPKCS1EncodingFromRSAPublicKey((RSAPublicKey) parse(identity).getPublicKey()));
+
+    private static byte[] certificate(String name) {
+        try {
+            return Resources.toByteArray(Resources.getResource("examples/certs/" + name));
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static X509Certificate parse(byte[] der) {
+        try {
+            return (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(new ByteArrayInputStream(der));
+        } catch (CertificateException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * the payload of a CERTS cell with the given types and certificates
+     */
+    private static ByteBuffer certs(Object... typesAndCerts) {
+        ByteBuffer retVal = ByteBuffer.allocate(1024 * 4);
+        retVal.put((byte) (typesAndCerts.length / 2));
+        for (int i = 0; i < typesAndCerts.length; i += 2) {
+            byte[] cert = (byte[]) typesAndCerts[i + 1];
+            retVal.put(((Integer) typesAndCerts[i]).byteValue()).putShort((short) cert.length).put(cert);
+        }
+        retVal.flip();
+        return retVal;
+    }
+
+    private void assertRejected(ByteBuffer payload, byte[] fingerprint) {
+        try {
+            LinkCertificates.verify(payload, fingerprint, tls);
+            fail("accepted");
+        } catch (CertificateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testVerify() throws Exception {
+        // unknown types are skipped
+        LinkCertificates.verify(certs(4, new byte[] { 1, 2, 3 }, LinkCertificates.CERT_IDENTITY, identity, LinkCertificates.CERT_LINK, link), fingerprint, tls);
+    }
+
+    @Test
+    public void testRejected() {
+        // another router's fingerprint
+        byte[] other = fingerprint.clone();
+        other[0] ^= 1;
+        assertRejected(certs(LinkCertificates.CERT_LINK, link, LinkCertificates.CERT_IDENTITY, identity), other);
+        // no identity
+        assertRejected(certs(LinkCertificates.CERT_LINK, link), fingerprint);
+        // a link certificate not signed by the identity
+        assertRejected(certs(LinkCertificates.CERT_LINK, identity, LinkCertificates.CERT_IDENTITY, identity), fingerprint);
+        // an identity certificate that isn't self-signed
+        assertRejected(certs(LinkCertificates.CERT_LINK, link, LinkCertificates.CERT_IDENTITY, link), Encryption.getHash(Encryption
+                .getPKCS1EncodingFromRSAPublicKey((RSAPublicKey) tls.getPublicKey())));
+        // twice
+        assertRejected(certs(LinkCertificates.CERT_LINK, link, LinkCertificates.CERT_LINK, link, LinkCertificates.CERT_IDENTITY, identity), fingerprint);
+        // truncated
+        ByteBuffer truncated = certs(LinkCertificates.CERT_LINK, link, LinkCertificates.CERT_IDENTITY, identity);
+        truncated.limit(truncated.limit() - 1);
+        assertRejected(truncated, fingerprint);
+    }
+
+    /**
+     * the link certificate of the CERTS cell has to be the one of the TLS
+     * handshake
+     */
+    @Test
+    public void testOtherTlsCertificate() {
+        try {
+            LinkCertificates.verify(certs(LinkCertificates.CERT_LINK, link, LinkCertificates.CERT_IDENTITY, identity), fingerprint, parse(identity));
+            fail("accepted");
+        } catch (CertificateException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package net.sf.onioncoffee;
+
+import static org.junit.Assert.*;
+
+import java.security.SecureRandom;
+import java.util.Random;
+
+import net.sf.onioncoffee.common.Curve25519;
+import net.sf.onioncoffee.common.TorException;
+
+import org.junit.Test;
+
+public class NtorHandshakeTest {
+
+    /**
+     * client and an in-JVM responder end up with the same key material, and a
+     * reply that doesn't come from the owner of the onion key is refused
+     */
+    @Test
+    public void testAgainstResponder() throws Exception {
+        SecureRandom random = new SecureRandom();
+        byte[] id = new byte[20];
+        new Random(8).nextBytes(id);
+        byte[] b = Curve25519.generatePrivateKey(random);
+
+        byte[] onionKey = Curve25519.publicKey(b);
+        NtorHandshake handshake = new NtorHandshake(id, onionKey, random);
+        byte[] onionSkin = handshake.getOnionSkin();
+        assertEquals(NtorHandshake.ONIONSKIN_LENGTH, onionSkin.length);
+        byte[] keys = new byte[NtorHandshake.KEY_MATERIAL_LENGTH];
+        byte[] reply = NtorHandshake.respond(id, b, onionKey, onionSkin, random, keys);
+        assertEquals(NtorHandshake.REPLY_LENGTH, reply.length);
+
+        byte[] padded = new byte[2 + reply.length];
+        System.arraycopy(reply, 0, padded, 2, reply.length);
+        assertArrayEquals(keys, handshake.finish(padded, 2));
+
+        reply[40] ^= 1;
+        try {
+            handshake.finish(reply, 0);
+            fail("forged AUTH accepted");
+        } catch (TorException e) {
+            // expected
+        }
+
+        // a responder with another key can't answer
+        try {
+            byte[] other = Curve25519.generatePrivateKey(random);
+            NtorHandshake.respond(id, other, Curve25519.publicKey(other), onionSkin, random, keys);
+            fail("onion skin for another key accepted");
+        } catch (TorException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package net.sf.onioncoffee;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.sf.onioncoffee.Cell.CellType;
+import net.sf.onioncoffee.CellRelay.RelayType;
+import net.sf.onioncoffee.common.Queue;
+import net.sf.onioncoffee.common.TorException;
+import net.sf.onioncoffee.common.TorNoAnswerException;
+
+import org.junit.Test;
+
+public class QueueTest {
+    private final Circuit circuit = new Circuit(null, 1, new CircuitNode[0]);
+
+    /**
+     * a SENDME arriving before the EXTENDED cell is left in the queue instead
+     * of failing the build
+     */
+    @Test
+    public void testStrayCellIsSkipped() throws Exception {
+        Queue queue = new Queue(1);
+        CellRelay sendme = new CellRelay(circuit, RelayType.RELAY_SENDME);
+        CellRelay extended = new CellRelay(circuit, RelayType.RELAY_EXTENDED);
+        queue.add(sendme);
+        queue.add(extended);
+        assertSame(extended, queue.receiveRelayCell(RelayType.RELAY_EXTENDED));
+        assertSame(sendme, queue.get(0));
+    }
+
+    /**
+     * the waiting thread gets the cell as soon as it is added
+     */
+    @Test
+    public void testWaiterIsSignalled() throws Exception {
+        final Queue queue = new Queue(10);
+        final AtomicReference<Cell> received = new AtomicReference<Cell>();
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    received.set(queue.receiveCell(CellType.CELL_CREATED));
+                } catch (Exception e) {
+                }
+            }
+        };
+        thread.start();
+        Thread.sleep(50);
+        queue.add(new CellRelay(circuit, RelayType.RELAY_DROP));
+        Cell created = new Cell(circuit, CellType.CELL_CREATED);
+        long start = System.nanoTime();
+        queue.add(created);
+        thread.join(5000);
+        assertTrue(System.nanoTime() - start < 1000000000L);
+        assertSame(created, received.get());
+    }
+
+    /**
+     * a DESTROY ends the wait for CREATED right away
+     */
+    @Test(expected = TorException.class)
+    public void testDestroyFailsWait() throws Exception {
+        Queue queue = new Queue(10);
+        queue.add(new Cell(circuit, CellType.CELL_DESTROY));
+        queue.receiveCell(CellType.CELL_CREATED);
+    }
+
+    @Test(expected = TorNoAnswerException.class)
+    public void testTimeout() throws Exception {
+        Queue queue = new Queue(0);
+        queue.receiveCell(CellType.CELL_CREATED);
+    }
+}
@@ -0,0 +1,90 @@
+package net.sf.onioncoffee;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sf.onioncoffee.CellRelay.RelayType;
+import net.sf.onioncoffee.common.Queue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TCPStreamChannelTest {
+    private final AtomicInteger sent = new AtomicInteger();
+    private final CellPool pool = new CellPool(16, false);
+    private final Circuit circuit = new Circuit(null, 1, new CircuitNode[] { new CircuitNode(null, new byte[72], 0) }) {
+        @Override
+        protected void doSendCell(Cell c) {
+            if (((CellRelay) c).relayCommand == RelayType.RELAY_DATA) {
+                sent.incrementAndGet();
+            }
+        }
+
+        @Override
+        CellPool getCellPool() {
+            return pool;
+        }
+    };
+    private TCPStream stream;
+    private TCPStreamChannel channel;
+
+    @Before
+    public void setUp() {
+        circuit.qhFC = new QueueFlowControlHandler(circuit, 1000, 100);
+        stream = new TCPStream(circuit);
+        stream.ID = 1;
+        stream.queue = new Queue();
+        stream.qhFC = new QueueFlowControlHandler(stream, 500, 50);
+        stream.queue.addHandler(stream.qhFC);
+        stream.qhT2J = new QueueTor2JavaHandler(stream);
+        stream.queue.addHandler(stream.qhT2J);
+        circuit.streams.put(stream.ID, stream);
+        channel = new TCPStreamChannel(stream);
+    }
+
+    /**
+     * a read takes what arrived and doesn't wait for more
+     */
+    @Test
+    public void testRead() throws Exception {
+        ByteBuffer dst = ByteBuffer.allocate(4096);
+        assertEquals(0, channel.read(dst));
+        Future<Void> readable = channel.whenReadable();
+        assertFalse(readable.isDone());
+
+        for (int i = 0; i < 3; ++i) {
+            CellRelay relay = new CellRelay(stream, RelayType.RELAY_DATA);
+            relay.appendData(new byte[CellRelay.RELAY_DATA_SIZE]);
+            circuit.onCell(relay);
+        }
+        assertTrue(readable.isDone());
+        assertEquals(3 * CellRelay.RELAY_DATA_SIZE, channel.read(dst));
+        assertEquals(0, channel.read(dst));
+
+        stream.qhT2J.close();
+        assertTrue(channel.whenReadable().isDone());
+        assertEquals(-1, channel.read(dst));
+    }
+
+    /**
+     * a write stops at a closed package window instead of waiting
+     */
+    @Test
+    public void testWrite() throws Exception {
+        ByteBuffer src = ByteBuffer.allocateDirect(501 * CellRelay.RELAY_DATA_SIZE + 10);
+        assertEquals(500 * CellRelay.RELAY_DATA_SIZE, channel.write(src));
+        assertEquals(500, sent.get());
+        assertEquals(0, channel.write(src));
+        Future<Void> writable = channel.whenWritable();
+        assertFalse(writable.isDone());
+
+        circuit.onCell(new CellRelay(stream, RelayType.RELAY_SENDME));
+        assertTrue(writable.isDone());
+        assertEquals(CellRelay.RELAY_DATA_SIZE + 10, channel.write(src));
+        assertEquals(502, sent.get());
+        assertFalse(src.hasRemaining());
+    }
+}
@@ -0,0 +1,146 @@
+package net.sf.onioncoffee;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.onioncoffee.CellRelay.RelayType;
+import net.sf.onioncoffee.common.TorException;
+
+import org.junit.Test;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+public class TCPStreamConnectTest {
+    private final List<RelayType> sent = new ArrayList<RelayType>();
+    private final CellPool pool = new CellPool(16, false);
+    private final Circuit circuit = new Circuit(null, 1, new CircuitNode[] { new CircuitNode(null, new byte[72], 0) }) {
+        @Override
+        protected void doSendCell(Cell c) {
+            sent.add(((CellRelay) c).relayCommand);
+        }
+
+        @Override
+        CellPool getCellPool() {
+            return pool;
+        }
+    };
+
+    private TCPStream pending() {
+        return circuit.streams.values().iterator().next();
+    }
+
+    /**
+     * the future is done when the exit connected, and the stream is usable
+     */
+    @Test
+    public void testConnected() throws Exception {
+        ListenableFuture<TCPStream> future = TCPStream.connect(circuit, new TCPStreamProperties("example.com", 80));
+        assertEquals(RelayType.RELAY_BEGIN, sent.get(0));
+        assertFalse(future.isDone());
+        // nothing to wait for yet
+        try {
+            pending().whenReadable().get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+
+        CellRelay connected = new CellRelay(pending(), RelayType.RELAY_CONNECTED);
+        connected.appendData(new byte[] { 10, 0, 0, 1 });
+        circuit.onCell(connected);
+        TCPStream stream = future.get(1, TimeUnit.SECONDS);
+        assertTrue(stream.established);
+        assertEquals("10.0.0.1", stream.resolvedAddress.getHostAddress());
+        assertNotNull(stream.getChannel());
+    }
+
+    /**
+     * a refusing exit fails the future without an END in return
+     */
+    @Test
+    public void testRefused() throws Exception {
+        ListenableFuture<TCPStream> future = TCPStream.connect(circuit, new TCPStreamProperties("example.com", 80));
+        CellRelay end = new CellRelay(pending(), RelayType.RELAY_END);
+        end.appendData(new byte[] { 4 });
+        circuit.onCell(end);
+        try {
+            future.get(1, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TorException);
+        }
+        assertFalse(sent.contains(RelayType.RELAY_END));
+        assertTrue(circuit.streams.isEmpty());
+    }
+
+    /**
+     * cancelling tells the exit
+     */
+    @Test
+    public void testCancel() throws Exception {
+        ListenableFuture<TCPStream> future = TCPStream.connect(circuit, new TCPStreamProperties("example.com", 80));
+        future.cancel(false);
+        assertEquals(RelayType.RELAY_END, sent.get(sent.size() - 1));
+        assertTrue(circuit.streams.isEmpty());
+    }
+
+    /**
+     * with optimistic data the first bytes follow the BEGIN before the exit
+     * answered
+     */
+    @Test
+    public void testOptimisticData() throws Exception {
+        TCPStreamProperties sp = new TCPStreamProperties("example.com", 80);
+        sp.optimisticData = true;
+        TCPStream stream = new TCPStream(circuit, sp);
+        assertFalse(stream.established);
+        stream.getOutputStream().write("GET / HTTP/1.0\r\n\r\n".getBytes());
+        stream.getOutputStream().flush();
+        assertEquals(RelayType.RELAY_BEGIN, sent.get(0));
+        assertEquals(RelayType.RELAY_DATA, sent.get(1));
+
+        circuit.onCell(new CellRelay(stream, RelayType.RELAY_CONNECTED));
+        assertTrue(stream.established);
+        CellRelay data = new CellRelay(stream, RelayType.RELAY_DATA);
+        data.appendData(new byte[10]);
+        circuit.onCell(data);
+        assertEquals(10, stream.getInputStream().read(new byte[100]));
+    }
+
+    /**
+     * a refusing exit fails an optimistic stream for the reader and the
+     * writer, a reader doesn't see an empty answer
+     */
+    @Test
+    public void testOptimisticRefused() throws Exception {
+        TCPStreamProperties sp = new TCPStreamProperties("example.com", 80);
+        sp.optimisticData = true;
+        TCPStream stream = new TCPStream(circuit, sp);
+        CellRelay end = new CellRelay(stream, RelayType.RELAY_END);
+        end.appendData(new byte[] { 4 });
+        circuit.onCell(end);
+        assertTrue(stream.closed);
+        try {
+            stream.getInputStream().read();
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().endsWith("reason 4"));
+        }
+        try {
+            stream.getChannel().read(ByteBuffer.allocate(10));
+            fail();
+        } catch (IOException e) {
+        }
+        try {
+            stream.getOutputStream().write(1);
+            fail();
+        } catch (IOException e) {
+        }
+    }
+}